@@ -1,30 +1,50 @@
 package apps;
 
 import net.datastructures.Coord;
+import net.datastructures.DoubleSpatialTreeMap;
 import net.datastructures.Map;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 
 import java.io.*;
+import java.util.List;
 
 public class EarthquakeData {
     public static void readDataIntoMap(Map<Coord<Double,Double>, CSVRecord> m) throws IOException {
-        for (CSVRecord rec : CSVFormat.DEFAULT.withHeader().parse(new InputStreamReader(new FileInputStream(new File("earthquakes.csv")))).getRecords()) {
+        readData((lon, lat, rec) -> m.put(new Coord<>(lon, lat), rec));
+    }
+
+    // same as above, but keeps the coordinates as primitives all the way into the map
+    public static void readDataIntoMap(DoubleSpatialTreeMap<CSVRecord> m) throws IOException {
+        readData(m::put);
+    }
+
+    /** Receives the location and record of each quake read */
+    private interface QuakeSink {
+        void accept(double lon, double lat, CSVRecord rec);
+    }
+
+    private static void readData(QuakeSink sink) throws IOException {
+        for (CSVRecord rec : readRecords()) {
             String slat = rec.get("LATITUDE");
             String slon = rec.get("LONGITUDE");
             if (slat.isEmpty() || slon.isEmpty()) continue; // skip records with missing lat or lon
-            Double lat;
-            Double lon;
+            double lat;
+            double lon;
             try { // sometimes it parse whitespace
                 lat = Double.parseDouble(slat);
                 lon = Double.parseDouble(slon);
             } catch (NumberFormatException e) {
                 continue;
             }
-            m.put(new Coord<>(lon, lat), rec);
+            sink.accept(lon, lat, rec);
         }
     }
 
+    private static List<CSVRecord> readRecords() throws IOException {
+        return CSVFormat.DEFAULT.withHeader().parse(new InputStreamReader(new FileInputStream(new File("earthquakes.csv")))).getRecords();
+    }
+
     public static void reportQuake(CSVRecord r) {
         System.out.println("In the year "+r.get("YEAR") + ", " +
                 r.get("COUNTRY") + " had a magnitude " + r.get("EQ_PRIMARY") + " quake");
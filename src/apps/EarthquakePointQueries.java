@@ -1,10 +1,13 @@
 package apps;
 
 import net.datastructures.Coord;
+import net.datastructures.Entry;
 import net.datastructures.SpatialTreeMap;
 import org.apache.commons.csv.CSVRecord;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class EarthquakePointQueries {
     public static void main(String[] args) throws IOException {
@@ -17,6 +20,12 @@ public class EarthquakePointQueries {
         System.out.println("actual height: " + quakes.treeHeight());
         System.out.println("minimum possible height: " + Math.ceil(Math.log(quakes.size()) / Math.log(4)));
 
+        // building the tree from all records at once keeps it close to the minimum height
+        List<Entry<Coord<Double, Double>, CSVRecord>> all = new ArrayList<>();
+        for (Entry<Coord<Double, Double>, CSVRecord> e : quakes.entrySet()) all.add(e);
+        SpatialTreeMap<Double, Double, CSVRecord> balanced = SpatialTreeMap.bulkLoad(all);
+        System.out.println("height after bulk load: " + balanced.treeHeight());
+
         // one from near the top of file
         CSVRecord rec = quakes.get(gpsCoord(31.5,35.3));
         EarthquakeData.reportQuake(rec);
@@ -4,8 +4,12 @@ import net.datastructures.*;
 import org.apache.commons.csv.CSVRecord;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.ToDoubleFunction;
 
 public class EarthquakeRangeQueries {
 
@@ -16,12 +20,18 @@ public class EarthquakeRangeQueries {
         // Find quakes in a bounding box that roughly covers the lower 48  US states
         reportQuakesIn(  quakes, gpsCoord( 47.88, -127.73), gpsCoord(21.14, -71.16), "USA", false);
 
+        // Find strong quakes in the USA since 1900, pruning on indexed attributes
+        reportRecentStrongIn(quakes, gpsCoord( 47.88, -127.73), gpsCoord(21.14, -71.16), 1900, 6, "USA");
+
         // Find quakes in a bounding box that roughly covers Italy
         reportQuakesIn(quakes, gpsCoord(46.381044, 3.993234), gpsCoord(35.536696,20.509447), "Italy", false);
 
         // Find quakes in a bounding box that roughly covers Japan
         reportQuakesIn(quakes, gpsCoord(45.217357,127.434924), gpsCoord(31.590234,145.924457), "Japan", false);
 
+        // Find the strongest quakes in the same box, without collecting all of them
+        reportStrongestIn(quakes, gpsCoord(45.217357,127.434924), gpsCoord(31.590234,145.924457), 10, "Japan");
+
         // Find quakes in a bounding box that roughly covers Iowa
         reportQuakesIn(quakes, gpsCoord(43.360882,-96.585850), gpsCoord(40.316970,-90.084788), "Japan", false);
 
@@ -72,11 +82,87 @@ public class EarthquakeRangeQueries {
             System.out.println("\t\t took " + ((double)(end-start)/(1000*1000)) + " ms");
         }
 
+        {
+            System.out.println("\t with parallel tree search");
+            long start = System.nanoTime();
+            List<Entry<Coord<Double, Double>, CSVRecord>> foundWithParallel = quakes.parallelSubMap(nwCorner, seCorner);
+            long end = System.nanoTime();
+
+            Set<Coord<Double,Double>> foundParallel = new HashSet<>();
+            for (Entry<Coord<Double,Double>,CSVRecord> e : foundWithParallel)
+                foundParallel.add(e.getKey());
+            System.out.println("\t\t found " + foundWithParallel.size());
+            System.out.println("\t\t took " + ((double)(end-start)/(1000*1000)) + " ms");
+            if (!foundParallel.equals(foundTree))
+                System.err.println("subMap and parallelSubMap got different results");
+        }
+
         if (!foundLinear.equals(foundTree)) {
             System.err.println("subMapLinear and subMap got different results");
         }
     }
 
+    /** Numeric attributes of a quake (NaN when unknown) */
+    private static final ToDoubleFunction<CSVRecord> MAGNITUDE = r -> number(r.get("EQ_PRIMARY"));
+    private static final ToDoubleFunction<CSVRecord> YEAR = r -> number(r.get("YEAR"));
+
+    /** Orders quakes by magnitude, with unknown magnitudes first */
+    private static final Comparator<CSVRecord> BY_MAGNITUDE = Comparator.comparingDouble(r -> orElse(MAGNITUDE.applyAsDouble(r), Double.NEGATIVE_INFINITY));
+
+    private static double number(String s) {
+        return (s == null || s.isEmpty() ? Double.NaN : Double.parseDouble(s));
+    }
+
+    private static double orElse(double d, double otherwise) {
+        return (Double.isNaN(d) ? otherwise : d);
+    }
+
+    public static void reportRecentStrongIn(SpatialTreeMap<Double ,Double, CSVRecord> quakes, Coord<Double,Double> nwCorner,
+                                            Coord<Double,Double> seCorner, int sinceYear, double minMagnitude, String regionName) {
+        System.out.println("~~ Earthquakes in " + regionName + " since " + sinceYear + " of magnitude " + minMagnitude + " or more ~~");
+        List<AttributeFilter<? super CSVRecord>> filters = Arrays.asList(
+                AttributeFilter.atLeast(YEAR, sinceYear), AttributeFilter.atLeast(MAGNITUDE, minMagnitude));
+        {
+            System.out.println("\t with tree search, then filtering");
+            CountingVisitor<Entry<Coord<Double, Double>, CSVRecord>> s = new CountingVisitor<>();
+            long start = System.nanoTime();
+            int i = 0;
+            for (Entry<Coord<Double,Double>,CSVRecord> e : quakes.subMap(nwCorner, seCorner, s))
+                if (filters.get(0).test(e.getValue()) && filters.get(1).test(e.getValue()))
+                    i++;
+            long end = System.nanoTime();
+            System.out.println("\t\t explored " + s.getCount() + " of " + quakes.size());
+            System.out.println("\t\t found " + i);
+            System.out.println("\t\t took " + ((double)(end-start)/(1000*1000)) + " ms");
+        }
+        {
+            System.out.println("\t with indexed attributes");
+            quakes.indexAttribute(YEAR);            // no effect once indexed
+            quakes.indexAttribute(MAGNITUDE);
+            CountingVisitor<Entry<Coord<Double, Double>, CSVRecord>> s = new CountingVisitor<>();
+            long start = System.nanoTime();
+            int i = quakes.subMap(nwCorner, seCorner, filters, s).size();
+            long end = System.nanoTime();
+            System.out.println("\t\t explored " + s.getCount() + " of " + quakes.size());
+            System.out.println("\t\t found " + i);
+            System.out.println("\t\t took " + ((double)(end-start)/(1000*1000)) + " ms");
+        }
+    }
+
+    public static void reportStrongestIn(SpatialTreeMap<Double ,Double, CSVRecord> quakes,
+                                         Coord<Double,Double> nwCorner, Coord<Double,Double> seCorner, int k, String regionName) {
+        System.out.println("~~ " + k + " strongest earthquakes in " + regionName + " ~~");
+        SpatialTreeMap.Ranking<CSVRecord> byMagnitude = quakes.addRanking(BY_MAGNITUDE);     // computes the subtree maxima
+        CountingVisitor<Entry<Coord<Double, Double>, CSVRecord>> s = new CountingVisitor<>();
+        long start = System.nanoTime();
+        Iterable<Entry<Coord<Double, Double>, CSVRecord>> strongest = quakes.topK(nwCorner, seCorner, k, byMagnitude, s);
+        long end = System.nanoTime();
+        for (Entry<Coord<Double,Double>,CSVRecord> e : strongest)
+            EarthquakeData.reportQuake(e.getValue());
+        System.out.println("\t\t explored " + s.getCount() + " of " + quakes.size());
+        System.out.println("\t\t took " + ((double)(end-start)/(1000*1000)) + " ms");
+    }
+
     public static Coord<Double, Double> gpsCoord(double lat, double lon) {
         // X is lon and Y is lat so that directions NW/NE/SW/SE match geography
         return new Coord<>(lon, lat);
@@ -16,12 +16,16 @@ package net.datastructures;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.ToIntFunction;
 
 /**
  * An abstract base class providing some functionality of the QuadTree interface.
  *
- * The following five methods remain abstract, and must be implemented
- * by a concrete subclass: size, root, parent, nw, ne, sw, se.
+ * The following methods remain abstract, and must be implemented
+ * by a concrete subclass: size, root, parent, nw, ne, sw, se, and the
+ * update methods addRoot, addNW, addNE, addSW, addSE, set and remove.
+ * Declaring the update methods here lets a map be written against
+ * AbstractQuadTree and run on any of the concrete storage schemes.
  *
  * @author Brandon Myers
  */
@@ -70,4 +74,103 @@ public abstract class AbstractQuadTree<E> extends AbstractTree<E>
     return snapshot;
   }
 
+  /**
+   * Walks down from Position p, letting step pick the child to move to at each node
+   * (0, 1, 2 or 3 for NW, NE, SW or SE), until step returns a negative number or the
+   * child it picks does not exist. Subclasses may override this to walk their own
+   * storage directly, without creating a Position for every node passed.
+   *
+   * @param p      A valid Position within the tree
+   * @param step   given the element of a node, returns the quadrant to descend into
+   * @return the Position of the last node reached
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public Position<E> descend(Position<E> p, ToIntFunction<? super E> step) {
+    while (true) {
+      Position<E> next;
+      switch (step.applyAsInt(p.getElement())) {
+        case 0: next = nw(p); break;
+        case 1: next = ne(p); break;
+        case 2: next = sw(p); break;
+        case 3: next = se(p); break;
+        default: return p;
+      }
+      if (next == null)
+        return p;
+      p = next;
+    }
+  }
+
+  // update methods that must be supported by concrete quad trees
+  /**
+   * Places element e at the root of an empty tree and returns its new Position.
+   *
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalStateException if the tree is not empty
+   */
+  public abstract Position<E> addRoot(E e) throws IllegalStateException;
+
+  /**
+   * Creates a new NW child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position below which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a NW child
+   */
+  public abstract Position<E> addNW(Position<E> p, E e) throws IllegalArgumentException;
+
+  /**
+   * Creates a new NE child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position below which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a NE child
+   */
+  public abstract Position<E> addNE(Position<E> p, E e) throws IllegalArgumentException;
+
+  /**
+   * Creates a new SW child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position below which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a SW child
+   */
+  public abstract Position<E> addSW(Position<E> p, E e) throws IllegalArgumentException;
+
+  /**
+   * Creates a new SE child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position below which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a SE child
+   */
+  public abstract Position<E> addSE(Position<E> p, E e) throws IllegalArgumentException;
+
+  /**
+   * Replaces the element at Position p with element e and returns the replaced element.
+   *
+   * @param p   the relevant Position
+   * @param e   the new element
+   * @return the replaced element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public abstract E set(Position<E> p, E e) throws IllegalArgumentException;
+
+  /**
+   * Removes the node at Position p together with all of its descendants.
+   *
+   * @param p   the relevant Position
+   * @return element that was removed
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  public abstract E remove(Position<E> p) throws IllegalArgumentException;
 }
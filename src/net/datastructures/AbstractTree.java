@@ -109,10 +109,12 @@ public abstract class AbstractTree<E> implements Tree<E> {
    * @throws IllegalArgumentException if p is not a valid Position for this tree.
    */
   public int depth(Position<E> p) throws IllegalArgumentException {
-    if (isRoot(p))
-      return 0;
-    else
-      return 1 + depth(parent(p));
+    int d = 0;
+    while (!isRoot(p)) {                // walk up rather than recurse, for very deep trees
+      p = parent(p);
+      d++;
+    }
+    return d;
   }
 
   /** Returns the height of the tree.
@@ -134,9 +136,17 @@ public abstract class AbstractTree<E> implements Tree<E> {
    * @throws IllegalArgumentException if p is not a valid Position for this tree.
    */
   public int height(Position<E> p) throws IllegalArgumentException {
-    int h = 0;                          // base case if p is external
-    for (Position<E> c : children(p))
-      h = Math.max(h, 1 + height(c));
+    // counts levels with a breadth-first traversal, so that the height of a
+    // degenerate tree is not limited by the depth of the call stack
+    int h = -1;
+    Queue<Position<E>> fringe = new LinkedQueue<>();
+    fringe.enqueue(p);
+    while (!fringe.isEmpty()) {
+      h++;                              // fringe holds exactly one level
+      for (int n = fringe.size(); n > 0; n--)
+        for (Position<E> c : children(fringe.dequeue()))
+          fringe.enqueue(c);
+    }
     return h;
   }
 
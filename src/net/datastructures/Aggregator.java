@@ -0,0 +1,98 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.Comparator;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Summarizes the values of a set of entries, for example their count or the largest
+ * of some attribute. An aggregator is a monoid: lift turns one value into a summary,
+ * and combine merges two summaries. Combine must be associative and commutative and
+ * identity must be its neutral element, so that summaries of disjoint parts of a map
+ * can be merged in any order.
+ */
+public interface Aggregator<V,A> {
+
+    /** Returns the summary of no values */
+    A identity();
+
+    /** Returns the summary of a single value */
+    A lift(V value);
+
+    /** Returns the summary of the union of the values summarized by a and b */
+    A combine(A a, A b);
+
+    /** Returns an aggregator counting values */
+    public static <V> Aggregator<V,Integer> count() {
+        return new Aggregator<V,Integer>() {
+            public Integer identity() { return 0; }
+            public Integer lift(V value) { return 1; }
+            public Integer combine(Integer a, Integer b) { return a + b; }
+        };
+    }
+
+    /** Returns an aggregator adding up an attribute of the values */
+    public static <V> Aggregator<V,Double> sum(final ToDoubleFunction<? super V> attribute) {
+        return new Aggregator<V,Double>() {
+            public Double identity() { return 0.0; }
+            public Double lift(V value) { return attribute.applyAsDouble(value); }
+            public Double combine(Double a, Double b) { return a + b; }
+        };
+    }
+
+    /**
+     * Returns an aggregator finding the smallest attribute of the values (infinity if there
+     * are none). NaN attributes are skipped.
+     */
+    public static <V> Aggregator<V,Double> min(final ToDoubleFunction<? super V> attribute) {
+        return new Aggregator<V,Double>() {
+            public Double identity() { return Double.POSITIVE_INFINITY; }
+            public Double lift(V value) {
+                double a = attribute.applyAsDouble(value);
+                return (Double.isNaN(a) ? Double.POSITIVE_INFINITY : a);
+            }
+            public Double combine(Double a, Double b) { return Math.min(a, b); }
+        };
+    }
+
+    /**
+     * Returns an aggregator finding the largest attribute of the values (-infinity if there
+     * are none). NaN attributes are skipped.
+     */
+    public static <V> Aggregator<V,Double> max(final ToDoubleFunction<? super V> attribute) {
+        return new Aggregator<V,Double>() {
+            public Double identity() { return Double.NEGATIVE_INFINITY; }
+            public Double lift(V value) {
+                double a = attribute.applyAsDouble(value);
+                return (Double.isNaN(a) ? Double.NEGATIVE_INFINITY : a);
+            }
+            public Double combine(Double a, Double b) { return Math.max(a, b); }
+        };
+    }
+
+    /** Returns an aggregator finding the greatest value under the given order (null if there are none) */
+    public static <V> Aggregator<V,V> greatest(final Comparator<? super V> order) {
+        return new Aggregator<V,V>() {
+            public V identity() { return null; }
+            public V lift(V value) { return value; }
+            public V combine(V a, V b) {
+                if (a == null) return b;
+                if (b == null) return a;
+                return (order.compare(a, b) >= 0 ? a : b);
+            }
+        };
+    }
+}
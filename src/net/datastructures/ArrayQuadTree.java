@@ -0,0 +1,453 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+/**
+ * Concrete implementation of a quad tree that stores its nodes in parallel arrays.
+ *
+ * Each node is identified by an int index. Its element, parent and four children
+ * are kept at that index in separate arrays, with links stored as indexes (NONE
+ * marks a missing node). The arrays are split into fixed-size chunks that are
+ * allocated as the tree grows, so growing never copies existing nodes and a large
+ * tree is a few arrays of chunks rather than one object per node.
+ *
+ * Positions handed out by this tree are small handles that only record an index.
+ * They are created on demand, so two handles for the same node are equal but not
+ * necessarily identical. descend walks the links by index, so a search from the
+ * root creates a handle only for the node it ends at.
+ */
+public class ArrayQuadTree<E> extends AbstractQuadTree<E> {
+
+  /** Index used for a missing parent or child */
+  protected static final int NONE = -1;
+
+  /** Parent link marking a node that remove is about to free */
+  private static final int REMOVED = -2;
+
+  /** Nodes per chunk (a power of two, so an index splits with shift and mask) */
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  //---------------- nested Slot class ----------------
+  /** A Position referring to a node of this tree by its index. */
+  protected class Slot implements Position<E> {
+    private final int index;
+
+    Slot(int index) { this.index = index; }
+
+    public int getIndex() { return index; }
+
+    @Override
+    public E getElement() throws IllegalStateException {
+      if (index >= size)
+        throw new IllegalStateException("Position is no longer valid");
+      return element(index);
+    }
+
+    private ArrayQuadTree<E> tree() { return ArrayQuadTree.this; }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ArrayQuadTree.Slot)) return false;
+      ArrayQuadTree<?>.Slot other = (ArrayQuadTree<?>.Slot) o;
+      return index == other.index && tree() == other.tree();
+    }
+
+    @Override
+    public int hashCode() { return index; }
+  } //----------- end of nested Slot class -----------
+
+  // ArrayQuadTree instance variables
+  private Object[][] elements = new Object[0][];
+  private int[][] parents = new int[0][];
+  private int[][] nws = new int[0][];
+  private int[][] nes = new int[0][];
+  private int[][] sws = new int[0][];
+  private int[][] ses = new int[0][];
+
+  /** The number of nodes in the tree (nodes occupy indexes 0 to size-1) */
+  private int size = 0;
+
+  /** Constructs an empty quad tree. */
+  public ArrayQuadTree() { }
+
+  // nonpublic utilities
+  /**
+   * Verifies that a Position is a handle of this tree.
+   *
+   * @param p   a Position (that should belong to this tree)
+   * @return    the index of the node referred to by p
+   * @throws IllegalArgumentException if an invalid position is detected
+   */
+  protected int validate(Position<E> p) throws IllegalArgumentException {
+    if (!(p instanceof ArrayQuadTree.Slot))
+      throw new IllegalArgumentException("Not valid position type: " + p);
+    Slot slot = (Slot) p;       // safe cast
+    if (slot.tree() != this)
+      throw new IllegalArgumentException("p does not belong to this tree");
+    if (slot.index >= size)
+      throw new IllegalArgumentException("p is no longer in the tree");
+    return slot.index;
+  }
+
+  /** Returns a Position for index i (or null for NONE). */
+  protected Position<E> position(int i) {
+    return (i == NONE ? null : new Slot(i));
+  }
+
+  @SuppressWarnings({"unchecked"})
+  private E element(int i) { return (E) elements[i >>> CHUNK_BITS][i & CHUNK_MASK]; }
+  private int link(int[][] links, int i) { return links[i >>> CHUNK_BITS][i & CHUNK_MASK]; }
+  private void setLink(int[][] links, int i, int target) { links[i >>> CHUNK_BITS][i & CHUNK_MASK] = target; }
+
+  /** Allocates a new node storing e below parent, growing the arrays by a chunk if needed. */
+  private int allocate(E e, int parent) {
+    int i = size;
+    int chunk = i >>> CHUNK_BITS;
+    if (chunk == elements.length) {
+      elements = Arrays.copyOf(elements, chunk + 1);
+      elements[chunk] = new Object[CHUNK_SIZE];
+      parents = addChunk(parents);
+      nws = addChunk(nws);
+      nes = addChunk(nes);
+      sws = addChunk(sws);
+      ses = addChunk(ses);
+    }
+    int offset = i & CHUNK_MASK;
+    elements[chunk][offset] = e;
+    parents[chunk][offset] = parent;
+    nws[chunk][offset] = NONE;
+    nes[chunk][offset] = NONE;
+    sws[chunk][offset] = NONE;
+    ses[chunk][offset] = NONE;
+    size++;
+    return i;
+  }
+
+  private static int[][] addChunk(int[][] links) {
+    int[][] grown = Arrays.copyOf(links, links.length + 1);
+    grown[links.length] = new int[CHUNK_SIZE];
+    return grown;
+  }
+
+  /** Utility shared by the addXX methods */
+  private Position<E> addChild(int[][] links, Position<E> p, E e, String which) {
+    int parent = validate(p);
+    if (link(links, parent) != NONE)
+      throw new IllegalArgumentException("p already has a " + which + " child");
+    int child = allocate(e, parent);
+    setLink(links, parent, child);
+    return new Slot(child);
+  }
+
+  // accessor methods (not already implemented in AbstractQuadTree)
+  /**
+   * Returns the number of nodes in the tree.
+   * @return number of nodes in the tree
+   */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the root Position of the tree (or null if tree is empty).
+   * @return root Position of the tree (or null if tree is empty)
+   */
+  @Override
+  public Position<E> root() {
+    return (size == 0 ? null : new Slot(0));
+  }
+
+  /**
+   * Returns true if Position p represents the root of the tree.
+   * Positions are compared by index since handles are created on demand.
+   *
+   * @param p    A valid Position within the tree
+   * @return true if p is the root of the tree, false otherwise
+   */
+  @Override
+  public boolean isRoot(Position<E> p) {
+    return validate(p) == 0;
+  }
+
+  /**
+   * Returns the Position of p's parent (or null if p is root).
+   *
+   * @param p    A valid Position within the tree
+   * @return Position of p's parent (or null if p is root)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public Position<E> parent(Position<E> p) throws IllegalArgumentException {
+    return position(link(parents, validate(p)));
+  }
+
+  /**
+   * Returns the Position of p's NW child (or null if no child exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the NW child (or null if no child exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> nw(Position<E> p) throws IllegalArgumentException {
+    return position(link(nws, validate(p)));
+  }
+
+  /**
+   * Returns the Position of p's NE child (or null if no child exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the NE child (or null if no child exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> ne(Position<E> p) throws IllegalArgumentException {
+    return position(link(nes, validate(p)));
+  }
+
+  /**
+   * Returns the Position of p's SW child (or null if no child exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the SW child (or null if no child exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> sw(Position<E> p) throws IllegalArgumentException {
+    return position(link(sws, validate(p)));
+  }
+
+  /**
+   * Returns the Position of p's SE child (or null if no child exists).
+   *
+   * @param p A valid Position within the tree
+   * @return the Position of the SE child (or null if no child exists)
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   */
+  @Override
+  public Position<E> se(Position<E> p) throws IllegalArgumentException {
+    return position(link(ses, validate(p)));
+  }
+
+  /**
+   * Returns the number of children of Position p, read directly from the link arrays.
+   *
+   * @param p    A valid Position within the tree
+   * @return number of children of Position p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public int numChildren(Position<E> p) {
+    int i = validate(p);
+    int count = 0;
+    if (link(nws, i) != NONE) count++;
+    if (link(nes, i) != NONE) count++;
+    if (link(sws, i) != NONE) count++;
+    if (link(ses, i) != NONE) count++;
+    return count;
+  }
+
+  /**
+   * Walks down from Position p as step directs (see AbstractQuadTree), following the
+   * link arrays by index and creating a Position only for the node it stops at.
+   *
+   * @param p      A valid Position within the tree
+   * @param step   given the element of a node, returns the quadrant to descend into
+   * @return the Position of the last node reached
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public Position<E> descend(Position<E> p, ToIntFunction<? super E> step) {
+    int i = validate(p);
+    while (true) {
+      int next;
+      switch (step.applyAsInt(element(i))) {
+        case 0: next = link(nws, i); break;
+        case 1: next = link(nes, i); break;
+        case 2: next = link(sws, i); break;
+        case 3: next = link(ses, i); break;
+        default: return new Slot(i);
+      }
+      if (next == NONE)
+        return new Slot(i);
+      i = next;
+    }
+  }
+
+  // update methods supported by this class
+  /**
+   * Places element e at the root of an empty tree and returns its new Position.
+   *
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalStateException if the tree is not empty
+   */
+  @Override
+  public Position<E> addRoot(E e) throws IllegalStateException {
+    if (!isEmpty()) throw new IllegalStateException("Tree is not empty");
+    return new Slot(allocate(e, NONE));
+  }
+
+  /**
+   * Creates a new NW child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position below which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a NW child
+   */
+  @Override
+  public Position<E> addNW(Position<E> p, E e) throws IllegalArgumentException {
+    return addChild(nws, p, e, "NW");
+  }
+
+  /**
+   * Creates a new NE child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position below which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a NE child
+   */
+  @Override
+  public Position<E> addNE(Position<E> p, E e) throws IllegalArgumentException {
+    return addChild(nes, p, e, "NE");
+  }
+
+  /**
+   * Creates a new SW child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position below which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a SW child
+   */
+  @Override
+  public Position<E> addSW(Position<E> p, E e) throws IllegalArgumentException {
+    return addChild(sws, p, e, "SW");
+  }
+
+  /**
+   * Creates a new SE child of Position p storing element e and returns its Position.
+   *
+   * @param p   the Position below which the new element is inserted
+   * @param e   the new element
+   * @return the Position of the new element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p already has a SE child
+   */
+  @Override
+  public Position<E> addSE(Position<E> p, E e) throws IllegalArgumentException {
+    return addChild(ses, p, e, "SE");
+  }
+
+  /**
+   * Replaces the element at Position p with element e and returns the replaced element.
+   *
+   * @param p   the relevant Position
+   * @param e   the new element
+   * @return the replaced element
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public E set(Position<E> p, E e) throws IllegalArgumentException {
+    int i = validate(p);
+    E temp = element(i);
+    elements[i >>> CHUNK_BITS][i & CHUNK_MASK] = e;
+    return temp;
+  }
+
+  /**
+   * Removes the node at Position p together with all of its descendants. To keep the
+   * nodes packed at the front of the arrays, each freed index is refilled with the
+   * last node that is not being removed, so the work done is proportional to the
+   * number of nodes removed. Since nodes may move, every Position of the tree becomes
+   * invalid.
+   *
+   * @param p   the relevant Position
+   * @return element that was removed
+   * @throws IllegalArgumentException if p is not a valid Position for this tree.
+   */
+  @Override
+  public E remove(Position<E> p) throws IllegalArgumentException {
+    int i = validate(p);
+    E temp = element(i);
+    int parent = link(parents, i);
+    if (parent != NONE)
+      replaceChild(parent, i, NONE);
+    // gather the indexes of the subtree, marking each one as removed
+    int[] doomed = new int[16];
+    int n = 0;
+    doomed[n++] = i;
+    setLink(parents, i, REMOVED);
+    for (int k = 0; k < n; k++) {
+      int j = doomed[k];
+      if (n + 4 > doomed.length)
+        doomed = Arrays.copyOf(doomed, 2 * doomed.length);
+      for (int[][] links : new int[][][] { nws, nes, sws, ses }) {
+        int c = link(links, j);
+        if (c != NONE) {
+          doomed[n++] = c;
+          setLink(parents, c, REMOVED);
+        }
+      }
+    }
+    // drop removed nodes from the end, then fill each remaining hole with the last node
+    for (int k = 0; k < n; k++) {
+      while (size > 0 && link(parents, size - 1) == REMOVED)
+        free(size - 1);
+      if (doomed[k] < size)
+        free(doomed[k]);
+    }
+    return temp;
+  }
+
+  /** Frees index i by moving the node at the last index into it. */
+  private void free(int i) {
+    int last = size - 1;
+    if (i != last) {
+      elements[i >>> CHUNK_BITS][i & CHUNK_MASK] = element(last);
+      int parent = link(parents, last);
+      setLink(parents, i, parent);
+      if (parent != NONE)
+        replaceChild(parent, last, i);
+      for (int[][] links : new int[][][] { nws, nes, sws, ses }) {
+        int c = link(links, last);
+        setLink(links, i, c);
+        if (c != NONE)
+          setLink(parents, c, i);
+      }
+    }
+    elements[last >>> CHUNK_BITS][last & CHUNK_MASK] = null;     // help garbage collection
+    size--;
+  }
+
+  /** Makes the link of parent that refers to child refer to replacement instead. */
+  private void replaceChild(int parent, int child, int replacement) {
+    if (link(nws, parent) == child) setLink(nws, parent, replacement);
+    else if (link(nes, parent) == child) setLink(nes, parent, replacement);
+    else if (link(sws, parent) == child) setLink(sws, parent, replacement);
+    else setLink(ses, parent, replacement);
+  }
+} //----------- end of ArrayQuadTree class -----------
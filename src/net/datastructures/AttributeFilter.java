@@ -0,0 +1,69 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A condition on a numeric attribute of map values: the attribute must lie between
+ * a lower and an upper bound, inclusive. A value whose attribute is NaN never matches.
+ */
+public class AttributeFilter<V> {
+    private final ToDoubleFunction<? super V> attribute;
+    private final double min;
+    private final double max;
+
+    public AttributeFilter(ToDoubleFunction<? super V> attribute, double min, double max) {
+        this.attribute = attribute;
+        this.min = min;
+        this.max = max;
+    }
+
+    /** Returns a filter keeping values whose attribute is at least min */
+    public static <V> AttributeFilter<V> atLeast(ToDoubleFunction<? super V> attribute, double min) {
+        return new AttributeFilter<>(attribute, min, Double.POSITIVE_INFINITY);
+    }
+
+    /** Returns a filter keeping values whose attribute is at most max */
+    public static <V> AttributeFilter<V> atMost(ToDoubleFunction<? super V> attribute, double max) {
+        return new AttributeFilter<>(attribute, Double.NEGATIVE_INFINITY, max);
+    }
+
+    // accessor methods
+    public ToDoubleFunction<? super V> getAttribute() { return attribute; }
+    public double getMin() { return min; }
+    public double getMax() { return max; }
+
+    /** Tests whether the attribute of value lies within the bounds */
+    public boolean test(V value) {
+        double a = attribute.applyAsDouble(value);
+        return a >= min && a <= max;
+    }
+
+    /**
+     * Tests whether some attribute between low and high (inclusive) could lie within the
+     * bounds. An empty range (low above high) or a NaN bound never overlaps.
+     */
+    public boolean overlaps(double low, double high) {
+        if (!(low <= high))
+            return false;
+        return low <= max && high >= min;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + min + ", " + max + "]";
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * A SpatialTreeMap that may be shared by many reading threads and any number of
+ * writing threads.
+ *
+ * Updates are serialized by the write mode of a StampedLock. Reads first run without
+ * any lock, under an optimistic stamp, and keep their result only if no update started
+ * in the meantime; otherwise, or if the unlocked read tripped over a half-made update,
+ * they run again under the read lock. While there are no updates, readers never block
+ * each other or write to shared memory, so read throughput grows with the number of cores.
+ *
+ * The tree is always a LinkedQuadTree. Its updates only link in new nodes, whose
+ * children are newer still, and unlink old ones, so an unlocked reader following
+ * child links can see a stale or incomplete tree but never a cycle, and always ends.
+ *
+ * Reads that call back into user code (a Visitor or a sink) run under the read lock,
+ * since they cannot be rolled back and retried.
+ */
+public class ConcurrentSpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements Sorted2DMap<X,Y,V> {
+
+  private final SpatialTreeMap<X,Y,V> map;
+  private final StampedLock lock = new StampedLock();
+
+  /** Constructs an empty map */
+  public ConcurrentSpatialTreeMap() {
+    this(new DefaultComparator<X>(), new DefaultComparator<Y>());
+  }
+
+  public ConcurrentSpatialTreeMap(Comparator<X> cx, Comparator<Y> cy) {
+    map = new SpatialTreeMap<>(cx, cy, new LinkedQuadTree<Entry<Coord<X,Y>,V>>());
+    map.trackSubtreeSizes();            // sized from the start, so counting never updates the map
+  }
+
+  // utilities running an operation under the lock
+  /** Runs a read without locking if no update interferes with it, and under the read lock otherwise */
+  private <T> T read(Supplier<T> op) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        T answer = op.get();
+        if (lock.validate(stamp))
+          return answer;
+      } catch (RuntimeException e) {
+        // either a torn read, which the locked retry avoids, or a genuine error,
+        // which the locked retry reports
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return op.get();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /** Runs a read under the read lock */
+  private <T> T readLocked(Supplier<T> op) {
+    long stamp = lock.readLock();
+    try {
+      return op.get();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /** Runs an update under the write lock */
+  private <T> T write(Supplier<T> op) {
+    long stamp = lock.writeLock();
+    try {
+      return op.get();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Returns the number of entries in the map.
+   * @return number of entries in the map
+   */
+  @Override
+  public int size() {
+    return read(() -> map.size());
+  }
+
+  /**
+   * Returns the value associated with the specified key, or null if no such entry exists.
+   * @param key  the key whose associated value is to be returned
+   * @return the associated value, or null if no such entry exists
+   */
+  @Override
+  public V get(Coord<X,Y> key) throws IllegalArgumentException {
+    return read(() -> map.get(key));
+  }
+
+  /**
+   * Associates the given value with the given key, waiting for other updates and
+   * locked reads to finish.
+   * @param key    key with which the specified value is to be associated
+   * @param value  value to be associated with the specified key
+   * @return the previous value associated with the key (or null, if no such entry)
+   */
+  @Override
+  public V put(Coord<X,Y> key, V value) throws IllegalArgumentException {
+    return write(() -> map.put(key, value));
+  }
+
+  /**
+   * Removes the entry with the specified key, if present, and returns its value.
+   * @param key  the key whose entry is to be removed from the map
+   * @return the previous value associated with the removed key, or null if no such entry exists
+   */
+  @Override
+  public V remove(Coord<X,Y> key) throws IllegalArgumentException {
+    return write(() -> map.remove(key));
+  }
+
+  /**
+   * Removes every entry with a key inside the bounding box, inclusive.
+   * @return the number of entries removed
+   */
+  public int removeRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) throws IllegalArgumentException {
+    return write(() -> map.removeRange(nwCorner, seCorner));
+  }
+
+  /**
+   * Sets the weight bound used to keep the tree balanced as entries are put.
+   * @see SpatialTreeMap#setRebuildAlpha(double)
+   */
+  public void setRebuildAlpha(double alpha) throws IllegalArgumentException {
+    write(() -> { map.setRebuildAlpha(alpha); return null; });
+  }
+
+  /**
+   * Returns a snapshot of all key-value entries of the map.
+   * @return iterable collection of the map's entries
+   */
+  @Override
+  public Iterable<Entry<Coord<X,Y>,V>> entrySet() {
+    return read(() -> map.entrySet());
+  }
+
+  /**
+   * Returns a snapshot of the entries with keys inside the bounding box, inclusive.
+   * With a visitor, the search runs under the read lock.
+   * @return iterable with keys in desired range
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public Iterable<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    if (visitor != null)
+      return readLocked(() -> map.subMap(nwCorner, seCorner, visitor));
+    return read(() -> map.subMap(nwCorner, seCorner, null));
+  }
+
+  /**
+   * Passes each entry with a key inside the bounding box to the sink, under the read lock.
+   * @return true if every entry in the box was passed to the sink, false if the sink stopped the search
+   */
+  @Override
+  public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    return readLocked(() -> map.forEachInRange(nwCorner, seCorner, sink));
+  }
+
+  /**
+   * Returns the number of entries with a key inside the bounding box, inclusive, adding
+   * the size of each subtree that lies inside the box at once.
+   */
+  @Override
+  public int countInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) throws IllegalArgumentException {
+    return read(() -> map.countInRange(nwCorner, seCorner));
+  }
+
+  /**
+   * Returns the k entries closest to q under the given metric, closest first.
+   * @see SpatialTreeMap#nearest(Coord, int, DistanceFunction)
+   */
+  public List<Entry<Coord<X,Y>,V>> nearest(Coord<X,Y> q, int k, DistanceFunction<X,Y> metric) throws IllegalArgumentException {
+    return read(() -> new ArrayList<>(map.nearest(q, k, metric)));
+  }
+}
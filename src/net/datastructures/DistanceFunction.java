@@ -0,0 +1,35 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+/**
+ * A metric on the keys of a Sorted2DMap, used by nearest neighbor searches.
+ */
+public interface DistanceFunction<X,Y> {
+
+    /**
+     * Returns the distance between two keys.
+     * @return a non-negative distance
+     */
+    double distance(Coord<X,Y> a, Coord<X,Y> b);
+
+    /**
+     * Returns a lower bound on the distance from q to any key inside the region.
+     * Returning 0 is always correct, but a tighter bound lets searches skip more
+     * of the tree.
+     * @return a non-negative lower bound
+     */
+    double minDistance(Coord<X,Y> q, Region<X,Y> region);
+}
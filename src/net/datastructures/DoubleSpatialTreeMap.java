@@ -0,0 +1,477 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.function.Predicate;
+
+/**
+ * An implementation of a map using a quad search tree, specialized for keys
+ * made of two primitive doubles.
+ *
+ * Coordinates are stored directly in the tree nodes, so no Coord, boxed Double
+ * or separate entry is kept per element, and comparisons never go through a
+ * Comparator. Each node serves as its own Position and Entry. A Coord is only
+ * created when a caller asks for the key of an entry. Each node also keeps the
+ * size of its subtree, which countInRange uses to skip whole quadrants.
+ *
+ * The placement of keys into quadrants follows the same rules as SpatialTreeMap
+ * (with the ordering of Double.compare), so both maps build identically shaped
+ * trees from the same sequence of puts.
+ */
+public class DoubleSpatialTreeMap<V> extends AbstractMap<Coord<Double,Double>,V> implements Sorted2DMap<Double,Double,V> {
+
+  //---------------- nested Node class ----------------
+  /** Nested static class for a node holding its coordinates as primitives. */
+  protected static class Node<V> implements Position<Entry<Coord<Double,Double>,V>>, Entry<Coord<Double,Double>,V> {
+    private final double x;
+    private final double y;
+    private V value;
+    private int count = 1;              // number of entries in the subtree rooted here
+    private Node<V> nw;
+    private Node<V> ne;
+    private Node<V> sw;
+    private Node<V> se;
+
+    public Node(double x, double y, V value) {
+      this.x = x;
+      this.y = y;
+      this.value = value;
+    }
+
+    // accessor methods
+    public double getX() { return x; }
+    public double getY() { return y; }
+    @Override
+    public Entry<Coord<Double,Double>,V> getElement() { return this; }
+    @Override
+    public Coord<Double,Double> getKey() { return new Coord<>(x, y); }
+    @Override
+    public V getValue() { return value; }
+
+    /** Returns string representation (for debugging only) */
+    public String toString() { return "<" + getKey() + ", " + value + ">"; }
+  } //----------- end of nested Node class -----------
+
+  /** The root of the tree (or null if the map is empty) */
+  protected Node<V> root = null;
+
+  /** The number of entries in the map */
+  private int size = 0;
+
+  /** Constructs an empty map */
+  public DoubleSpatialTreeMap() { }
+
+  /** Determines whether a key is valid. */
+  protected boolean checkKey(Coord<Double,Double> key) throws IllegalArgumentException {
+    if (key == null || key.getX() == null || key.getY() == null)
+      throw new IllegalArgumentException("Incompatible key");
+    return true;
+  }
+
+  /**
+   * Returns the number of entries in the map.
+   * @return number of entries in the map
+   */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the node having the given coordinates, or null if no such node exists.
+   * @param x  x coordinate of the target key
+   * @param y  y coordinate of the target key
+   * @return Node holding the key, or null
+   */
+  private Node<V> treeSearch(double x, double y) {
+    Node<V> walk = root;
+    while (walk != null) {
+      int compareX = Double.compare(walk.x, x);
+      int compareY = Double.compare(walk.y, y);
+      if (compareX == 0 && compareY == 0)
+        return walk;
+      else if (compareX < 0 && compareY > 0)
+        walk = walk.nw;
+      else if (compareX >= 0 && compareY >= 0)
+        walk = walk.ne;
+      else if (compareX < 0 && compareY <= 0)
+        walk = walk.sw;
+      else
+        walk = walk.se;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the value associated with the given coordinates, or null if no such entry exists.
+   * @param x  x coordinate of the key
+   * @param y  y coordinate of the key
+   * @return the associated value, or null if no such entry exists
+   */
+  public V get(double x, double y) {
+    Node<V> p = treeSearch(x, y);
+    return (p == null ? null : p.value);
+  }
+
+  /**
+   * Returns the value associated with the specified key, or null if no such entry exists.
+   * @param key  the key whose associated value is to be returned
+   * @return the associated value, or null if no such entry exists
+   */
+  @Override
+  public V get(Coord<Double,Double> key) throws IllegalArgumentException {
+    checkKey(key);
+    return get(key.getX(), key.getY());
+  }
+
+  /**
+   * Associates the given value with the given coordinates. If an entry with
+   * the same coordinates was already in the map, this replaces the previous
+   * value with the new one and returns the old value. Otherwise, a new
+   * entry is added and null is returned.
+   * @param x      x coordinate of the key
+   * @param y      y coordinate of the key
+   * @param value  value to be associated with the key
+   * @return the previous value associated with the key (or null, if no such entry)
+   */
+  public V put(double x, double y, V value) {
+    if (root == null) {
+      root = new Node<>(x, y, value);
+      size = 1;
+      return null;
+    }
+    Node<V> walk = root;
+    while (true) {
+      int compareX = Double.compare(walk.x, x);
+      int compareY = Double.compare(walk.y, y);
+      if (compareX == 0 && compareY == 0) {
+        V old = walk.value;
+        walk.value = value;
+        return old;
+      }
+      else if (compareX < 0 && compareY > 0) {
+        if (walk.nw == null) { walk.nw = new Node<>(x, y, value); break; }
+        walk = walk.nw;
+      }
+      else if (compareX >= 0 && compareY >= 0) {
+        if (walk.ne == null) { walk.ne = new Node<>(x, y, value); break; }
+        walk = walk.ne;
+      }
+      else if (compareX < 0 && compareY <= 0) {
+        if (walk.sw == null) { walk.sw = new Node<>(x, y, value); break; }
+        walk = walk.sw;
+      }
+      else {
+        if (walk.se == null) { walk.se = new Node<>(x, y, value); break; }
+        walk = walk.se;
+      }
+    }
+    size++;
+    // the key was new, so every subtree on its path grew by one
+    for (walk = root; Double.compare(walk.x, x) != 0 || Double.compare(walk.y, y) != 0; walk = child(walk, x, y))
+      walk.count++;
+    return null;
+  }
+
+  /** Returns the child of walk in whose quadrant (x, y) belongs */
+  private static <V> Node<V> child(Node<V> walk, double x, double y) {
+    int compareX = Double.compare(walk.x, x);
+    int compareY = Double.compare(walk.y, y);
+    if (compareX < 0 && compareY > 0)
+      return walk.nw;
+    else if (compareX >= 0 && compareY >= 0)
+      return walk.ne;
+    else if (compareX < 0 && compareY <= 0)
+      return walk.sw;
+    else
+      return walk.se;
+  }
+
+  /**
+   * Associates the given value with the given key. If an entry with
+   * the key was already in the map, this replaced the previous value
+   * with the new one and returns the old value. Otherwise, a new
+   * entry is added and null is returned.
+   * @param key    key with which the specified value is to be associated
+   * @param value  value to be associated with the specified key
+   * @return the previous value associated with the key (or null, if no such entry)
+   */
+  @Override
+  public V put(Coord<Double,Double> key, V value) throws IllegalArgumentException {
+    checkKey(key);
+    return put(key.getX(), key.getY(), value);
+  }
+
+  /**
+   * Removes the entry with the given coordinates, if present, and returns its
+   * associated value. Otherwise does nothing and returns null. The entries below
+   * the removed one are put back into the quadrant it occupied, breadth first, so
+   * the cost depends on the size of that subtree and not on the size of the map.
+   * @param x  x coordinate of the key
+   * @param y  y coordinate of the key
+   * @return the previous value associated with the removed key, or null if no such entry exists
+   */
+  public V remove(double x, double y) {
+    Node<V> parent = null;
+    Node<V> walk = root;
+    while (walk != null && (Double.compare(walk.x, x) != 0 || Double.compare(walk.y, y) != 0)) {
+      parent = walk;
+      walk = child(walk, x, y);
+    }
+    if (walk == null)
+      return null;
+    // the whole subtree leaves the map, and every subtree on its path shrinks by its size
+    for (Node<V> a = root; a != walk; a = child(a, x, y))
+      a.count -= walk.count;
+    size -= walk.count;
+    if (parent == null)
+      root = null;
+    else if (parent.nw == walk)
+      parent.nw = null;
+    else if (parent.ne == walk)
+      parent.ne = null;
+    else if (parent.sw == walk)
+      parent.sw = null;
+    else
+      parent.se = null;
+    // the descendants all belong to the quadrant walk occupied, so put sends them back there
+    ArrayDeque<Node<V>> fringe = new ArrayDeque<>();
+    fringe.add(walk);
+    while (!fringe.isEmpty()) {
+      Node<V> p = fringe.remove();
+      if (p != walk)
+        put(p.x, p.y, p.value);
+      if (p.nw != null) fringe.add(p.nw);
+      if (p.ne != null) fringe.add(p.ne);
+      if (p.sw != null) fringe.add(p.sw);
+      if (p.se != null) fringe.add(p.se);
+    }
+    return walk.value;
+  }
+
+  /**
+   * Removes the entry with the specified key, if present, and returns
+   * its associated value. Otherwise does nothing and returns null.
+   * @param key  the key whose entry is to be removed from the map
+   * @return the previous value associated with the removed key, or null if no such entry exists
+   */
+  @Override
+  public V remove(Coord<Double,Double> key) throws IllegalArgumentException {
+    checkKey(key);
+    return remove(key.getX(), key.getY());
+  }
+
+  // Support for iteration
+  /**
+   * Returns an iterable collection of all key-value entries of the map.
+   *
+   * @return iterable collection of the map's entries
+   */
+  @Override
+  public Iterable<Entry<Coord<Double,Double>,V>> entrySet() {
+    ArrayList<Entry<Coord<Double,Double>,V>> buffer = new ArrayList<>(size());
+    if (root != null)
+      buffer.add(root);
+    // the buffer doubles as the queue of a breadth-first traversal
+    for (int i = 0; i < buffer.size(); i++) {
+      Node<V> p = (Node<V>) buffer.get(i);
+      if (p.nw != null) buffer.add(p.nw);
+      if (p.ne != null) buffer.add(p.ne);
+      if (p.sw != null) buffer.add(p.sw);
+      if (p.se != null) buffer.add(p.se);
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns an iterable containing all entries with keys inside the bounding box
+   * with corners (minX, maxY) and (maxX, minY), inclusive.
+   * @return iterable with keys in desired range
+   */
+  public Iterable<Entry<Coord<Double,Double>,V>> subMap(double minX, double maxY, double maxX, double minY,
+                                                        Visitor<Entry<Coord<Double,Double>,V>> visitor) {
+    ArrayList<Entry<Coord<Double,Double>,V>> buffer = new ArrayList<>();
+    // same validity rule as SpatialTreeMap.subMap
+    if (Double.compare(minX, maxX) < 0 && Double.compare(maxY, minY) > 0 && root != null)
+      subMapSearch(minX, maxY, maxX, minY, visitor, buffer::add);
+    return buffer;
+  }
+
+  /**
+   * Passes each entry with a key inside the bounding box with corners (minX, maxY)
+   * and (maxX, minY) to the sink, stopping as soon as the sink returns false.
+   * @return true if the search ran to completion, false if the sink stopped it
+   */
+  public boolean forEachInRange(double minX, double maxY, double maxX, double minY,
+                                Predicate<? super Entry<Coord<Double,Double>,V>> sink) {
+    if (Double.compare(minX, maxX) < 0 && Double.compare(maxY, minY) > 0 && root != null)
+      return subMapSearch(minX, maxY, maxX, minY, null, sink);
+    return true;
+  }
+
+  /**
+   * Passes each entry with a key inside the bounding box to the sink, stopping
+   * as soon as the sink returns false.
+   * @return true if the search ran to completion, false if the sink stopped it
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public boolean forEachInRange(Coord<Double,Double> nwCorner, Coord<Double,Double> seCorner,
+                                Predicate<? super Entry<Coord<Double,Double>,V>> sink) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    return forEachInRange(nwCorner.getX(), nwCorner.getY(), seCorner.getX(), seCorner.getY(), sink);
+  }
+
+  /**
+   * Returns an iterable containing all entries with keys inside the bounding box
+   * defined by nwCorner and seCorner, inclusive.
+   * @return iterable with keys in desired range
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public Iterable<Entry<Coord<Double,Double>,V>> subMap(Coord<Double,Double> nwCorner, Coord<Double,Double> seCorner,
+                                                        Visitor<Entry<Coord<Double,Double>,V>> visitor) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    return subMap(nwCorner.getX(), nwCorner.getY(), seCorner.getX(), seCorner.getY(), visitor);
+  }
+
+  /**
+   * Returns the number of entries with a key inside the bounding box with corners
+   * (minX, maxY) and (maxX, minY), inclusive. Every node keeps the size of its subtree,
+   * so a subtree whose whole quadrant lies inside the box adds its size at once, and
+   * only the nodes near the boundary of the box are counted one by one.
+   * @return the number of entries in the box
+   */
+  public int countInRange(double minX, double maxY, double maxX, double minY) {
+    if (Double.compare(minX, maxX) >= 0 || Double.compare(maxY, minY) <= 0 || root == null)
+      return 0;
+    int count = 0;
+    ArrayDeque<CountFrame<V>> stack = new ArrayDeque<>();
+    // -Infinity and NaN are the least and greatest doubles under Double.compare,
+    // so they bound the unbounded sides of the root's region
+    stack.push(new CountFrame<>(root, Double.NEGATIVE_INFINITY, Double.NaN, Double.NEGATIVE_INFINITY, Double.NaN));
+    while (!stack.isEmpty()) {
+      CountFrame<V> f = stack.pop();
+      Node<V> p = f.node;
+      if (Double.compare(f.xLo, minX) >= 0 && Double.compare(f.xHi, maxX) <= 0
+          && Double.compare(f.yLo, minY) >= 0 && Double.compare(f.yHi, maxY) <= 0) {
+        count += p.count;                 // the whole subtree is inside the box
+        continue;
+      }
+      int xMin = Double.compare(p.x, minX);
+      int xMax = Double.compare(p.x, maxX);
+      int yMin = Double.compare(p.y, minY);
+      int yMax = Double.compare(p.y, maxY);
+      if (xMin >= 0 && xMax <= 0 && yMin >= 0 && yMax <= 0)
+        count++;
+      // same quadrants as subMapSearch; each child's region is clipped at p
+      if (p.se != null && xMin >= 0 && yMax < 0)
+        stack.push(new CountFrame<>(p.se, f.xLo, p.x, p.y, f.yHi));
+      if (p.sw != null && xMax < 0 && yMax <= 0)
+        stack.push(new CountFrame<>(p.sw, p.x, f.xHi, p.y, f.yHi));
+      if (p.ne != null && xMin >= 0 && yMin >= 0)
+        stack.push(new CountFrame<>(p.ne, f.xLo, p.x, f.yLo, p.y));
+      if (p.nw != null && xMax < 0 && yMin > 0)
+        stack.push(new CountFrame<>(p.nw, p.x, f.xHi, f.yLo, p.y));
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of entries with a key inside the bounding box defined by
+   * nwCorner and seCorner, inclusive, using the subtree sizes kept in the nodes.
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public int countInRange(Coord<Double,Double> nwCorner, Coord<Double,Double> seCorner) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    return countInRange(nwCorner.getX(), nwCorner.getY(), seCorner.getX(), seCorner.getY());
+  }
+
+  //---------------- nested CountFrame class ----------------
+  /** A subtree still to be counted, with bounds on the coordinates of its keys */
+  private static class CountFrame<V> {
+    private final Node<V> node;
+    private final double xLo, xHi, yLo, yHi;
+
+    CountFrame(Node<V> node, double xLo, double xHi, double yLo, double yHi) {
+      this.node = node;
+      this.xLo = xLo;
+      this.xHi = xHi;
+      this.yLo = yLo;
+      this.yHi = yHi;
+    }
+  } //----------- end of nested CountFrame class -----------
+
+  // utility to pass the entries of the box to a sink (the visitor may be null), walking
+  // the tree with an explicit stack so that the depth of the tree is not limited by the
+  // depth of the call stack; returns false if the sink ended the search early
+  private boolean subMapSearch(double minX, double maxY, double maxX, double minY,
+                               Visitor<Entry<Coord<Double,Double>,V>> visitor, Predicate<? super Entry<Coord<Double,Double>,V>> sink) {
+    ArrayDeque<Node<V>> stack = new ArrayDeque<>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+      Node<V> p = stack.pop();
+      if (visitor != null)
+        visitor.visit(p);
+      // comparisons use Double.compare so that they agree with the ordering used by put
+      int xMin = Double.compare(p.x, minX);
+      int xMax = Double.compare(p.x, maxX);
+      int yMin = Double.compare(p.y, minY);
+      int yMax = Double.compare(p.y, maxY);
+      if (xMin >= 0 && xMax <= 0 && yMin >= 0 && yMax <= 0 && !sink.test(p))
+        return false;
+      // only descend into the quadrants of p that can overlap the box
+      if (p.se != null && xMin >= 0 && yMax < 0)
+        stack.push(p.se);
+      if (p.sw != null && xMax < 0 && yMax <= 0)
+        stack.push(p.sw);
+      if (p.ne != null && xMin >= 0 && yMin >= 0)
+        stack.push(p.ne);
+      if (p.nw != null && xMax < 0 && yMin > 0)
+        stack.push(p.nw);
+    }
+    return true;
+  }
+
+  // for debugging - ought to be protected but we want to use it in our apps
+  /**
+   * Returns the height of the tree, counting the level of empty quadrants
+   * below the deepest entry (the same value SpatialTreeMap reports).
+   */
+  /*protected*/ public int treeHeight() {
+    // counts levels with a breadth-first traversal rather than recursion
+    int h = 0;
+    ArrayDeque<Node<V>> fringe = new ArrayDeque<>();
+    if (root != null)
+      fringe.add(root);
+    while (!fringe.isEmpty()) {
+      h++;                              // fringe holds exactly one level
+      for (int n = fringe.size(); n > 0; n--) {
+        Node<V> p = fringe.remove();
+        if (p.nw != null) fringe.add(p.nw);
+        if (p.ne != null) fringe.add(p.ne);
+        if (p.sw != null) fringe.add(p.sw);
+        if (p.se != null) fringe.add(p.se);
+      }
+    }
+    return h;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+/**
+ * Straight-line distance between keys made of two numbers, compared as doubles.
+ */
+public class EuclideanDistance<X extends Number, Y extends Number> implements DistanceFunction<X,Y> {
+
+    @Override
+    public double distance(Coord<X,Y> a, Coord<X,Y> b) {
+        double dx = a.getX().doubleValue() - b.getX().doubleValue();
+        double dy = a.getY().doubleValue() - b.getY().doubleValue();
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    @Override
+    public double minDistance(Coord<X,Y> q, Region<X,Y> region) {
+        double dx = gap(q.getX().doubleValue(), region.getMinX(), region.getMaxX());
+        double dy = gap(q.getY().doubleValue(), region.getMinY(), region.getMaxY());
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /** Returns the distance from v to the interval [min, max] (null bounds are unbounded) */
+    private static double gap(double v, Number min, Number max) {
+        if (min != null && v < min.doubleValue())
+            return min.doubleValue() - v;
+        if (max != null && v > max.doubleValue())
+            return v - max.doubleValue();
+        return 0;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Queries on maps with geographic keys, where X is the longitude and Y the
+ * latitude, both in degrees (the convention of gpsCoord in the apps).
+ */
+public class GeoQueries {
+
+    /** Padding (in degrees) that keeps search boxes non-empty and absorbs rounding */
+    private static final double PAD = 1e-9;
+
+    private GeoQueries() { }
+
+    /**
+     * Returns the entries with keys inside a geographic box, inclusive. A box whose
+     * west edge is east of its east edge (nwCorner.getX() &gt; seCorner.getX()) is taken
+     * to cross the antimeridian at longitude +/-180.
+     * @return list of entries in the box
+     */
+    public static <V> List<Entry<Coord<Double,Double>,V>> subMap(Sorted2DMap<Double,Double,V> map,
+                                                                 Coord<Double,Double> nwCorner, Coord<Double,Double> seCorner) {
+        final List<Entry<Coord<Double,Double>,V>> buffer = new ArrayList<>();
+        forEachInRange(map, nwCorner, seCorner, e -> buffer.add(e));
+        return buffer;
+    }
+
+    /**
+     * Passes each entry with a key inside a geographic box (inclusive) to the sink, stopping
+     * as soon as the sink returns false. A box that crosses the antimeridian is split into
+     * an eastern part up to longitude 180 and a western part from longitude -180; the two
+     * parts are disjoint and, on a SpatialTreeMap, are searched in a single traversal.
+     * The outer edges of the parts are padded, so that a box starting at 180 or ending at
+     * -180 still finds the keys on that meridian rather than searching an empty part.
+     * @param sink  receives the entries; returns false to end the search
+     * @return true if the search ran to completion, false if the sink stopped it
+     */
+    public static <V> boolean forEachInRange(Sorted2DMap<Double,Double,V> map, Coord<Double,Double> nwCorner,
+                                             Coord<Double,Double> seCorner, Predicate<? super Entry<Coord<Double,Double>,V>> sink) {
+        if (nwCorner.getX() <= seCorner.getX())
+            return map.forEachInRange(nwCorner, seCorner, sink);
+        List<Coord<Double,Double>> nws = Arrays.asList(nwCorner, new Coord<>(-180 - PAD, nwCorner.getY()));
+        List<Coord<Double,Double>> ses = Arrays.asList(new Coord<>(180 + PAD, seCorner.getY()), seCorner);
+        return map.forEachInRanges(nws, ses, sink);
+    }
+
+    /**
+     * Returns the entries whose keys are within the given great-circle distance of center.
+     * The tree is searched with a latitude/longitude box that surely contains the circle
+     * (wrapping around the antimeridian if the circle crosses it), and each entry found
+     * in the box is then checked with the haversine formula.
+     * @param center  a (lon, lat) key
+     * @param km      the radius in kilometers
+     * @return the entries within the radius
+     * @throws IllegalArgumentException if the radius is negative
+     */
+    public static <V> List<Entry<Coord<Double,Double>,V>> withinRadius(Sorted2DMap<Double,Double,V> map,
+                                                                       Coord<Double,Double> center, double km) throws IllegalArgumentException {
+        if (km < 0) throw new IllegalArgumentException("Radius must not be negative");
+        final double lat = center.getY();
+        final double lon = center.getX();
+        final List<Entry<Coord<Double,Double>,V>> buffer = new ArrayList<>();
+        double d = km / HaversineDistance.EARTH_RADIUS_KM;    // angular radius
+        double dLat = Math.toDegrees(d);
+        double minLat = lat - dLat;
+        double maxLat = lat + dLat;
+        double minLon = -180 - PAD;
+        double maxLon = 180 + PAD;
+        if (minLat > -90 && maxLat < 90) {
+            // neither pole is inside the circle, so its longitude span is bounded
+            double dLon = Math.toDegrees(Math.asin(Math.min(1, Math.sin(d) / Math.cos(Math.toRadians(lat)))));
+            minLon = lon - dLon - PAD;
+            maxLon = lon + dLon + PAD;
+            // a circle crossing the antimeridian becomes a wrapping box
+            if (minLon < -180) minLon += 360;
+            if (maxLon > 180) maxLon -= 360;
+        }
+        Coord<Double,Double> nwCorner = new Coord<>(minLon, Math.min(maxLat, 90) + PAD);
+        Coord<Double,Double> seCorner = new Coord<>(maxLon, Math.max(minLat, -90) - PAD);
+        forEachInRange(map, nwCorner, seCorner, e -> {
+            Coord<Double,Double> k = e.getKey();
+            if (HaversineDistance.distance(lat, lon, k.getY(), k.getX()) <= km)
+                buffer.add(e);
+            return true;
+        });
+        return buffer;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+/**
+ * Great-circle distance in kilometers between geographic keys, where X is the
+ * longitude and Y the latitude, both in degrees.
+ */
+public class HaversineDistance implements DistanceFunction<Double,Double> {
+
+    /** Mean radius of the earth in kilometers */
+    public static final double EARTH_RADIUS_KM = 6371.0088;
+
+    @Override
+    public double distance(Coord<Double,Double> a, Coord<Double,Double> b) {
+        return distance(a.getY(), a.getX(), b.getY(), b.getX());
+    }
+
+    /** Returns the great-circle distance in kilometers between two (lat, lon) points */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double h = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * Any path from q to the region must at least cover the latitude gap between
+     * them, so that gap (measured along a meridian) is a lower bound.
+     */
+    @Override
+    public double minDistance(Coord<Double,Double> q, Region<Double,Double> region) {
+        double lat = q.getY();
+        double gap = 0;
+        if (region.getMinY() != null && lat < region.getMinY())
+            gap = region.getMinY() - lat;
+        else if (region.getMaxY() != null && lat > region.getMaxY())
+            gap = lat - region.getMaxY();
+        return EARTH_RADIUS_KM * Math.toRadians(gap);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A map with Coord keys that also keeps a sorted index on an attribute of its values,
+ * so that queries combining a bounding box with a range of the attribute (for example
+ * a region and a time window) can be driven from whichever index is more selective.
+ *
+ * The entries are stored in a SpatialTreeMap. The attribute index is a TreeMap from
+ * each attribute value to the keys of the entries having it. The keys in the index are
+ * the very Coord objects stored in the spatial map, compared by identity, so the index
+ * agrees with the map's comparators even where they disagree with Coord.equals. For each query a small
+ * planner counts the entries in the box, using the subtree sizes the SpatialTreeMap
+ * tracks, and counts the entries in the attribute range only as far as that
+ * number; it then scans the smaller of the two and checks the other condition on each
+ * entry found. Counters record how often each plan was chosen.
+ *
+ * Values whose attribute is null are not indexed, and never match a query.
+ */
+public class IndexedSpatialMap<X,Y,V,K> extends AbstractMap<Coord<X,Y>,V> implements Sorted2DMap<X,Y,V> {
+
+  private final SpatialTreeMap<X,Y,V> spatial;
+  private final TreeMap<K, Set<Coord<X,Y>>> index;
+  private final Function<? super V, ? extends K> attribute;
+  private final Comparator<X> compX;
+  private final Comparator<Y> compY;
+  private final Comparator<K> compK;
+
+  // planner counters
+  private long spatialPlans = 0;
+  private long attributePlans = 0;
+
+  /**
+   * Constructs an empty map indexing the given attribute, with the natural ordering
+   * of both dimensions and of the attribute.
+   * @param attribute  extracts the indexed attribute from a value
+   */
+  public IndexedSpatialMap(Function<? super V, ? extends K> attribute) {
+    this(new DefaultComparator<X>(), new DefaultComparator<Y>(), attribute, new DefaultComparator<K>());
+  }
+
+  public IndexedSpatialMap(Comparator<X> cx, Comparator<Y> cy, Function<? super V, ? extends K> attribute, Comparator<K> ck) {
+    spatial = new SpatialTreeMap<>(cx, cy);
+    spatial.trackSubtreeSizes();        // the planner counts the entries in the box
+    index = new TreeMap<>(ck);
+    this.attribute = attribute;
+    compX = cx;
+    compY = cy;
+    compK = ck;
+  }
+
+  /**
+   * Returns the number of entries in the map.
+   * @return number of entries in the map
+   */
+  @Override
+  public int size() {
+    return spatial.size();
+  }
+
+  /**
+   * Returns the value associated with the specified key, or null if no such entry exists.
+   * @param key  the key whose associated value is to be returned
+   * @return the associated value, or null if no such entry exists
+   */
+  @Override
+  public V get(Coord<X,Y> key) throws IllegalArgumentException {
+    return spatial.get(key);
+  }
+
+  /**
+   * Associates the given value with the given key, updating the attribute index.
+   * @param key    key with which the specified value is to be associated
+   * @param value  value to be associated with the specified key
+   * @return the previous value associated with the key (or null, if no such entry)
+   */
+  @Override
+  public V put(Coord<X,Y> key, V value) throws IllegalArgumentException {
+    Entry<Coord<X,Y>,V> stored = spatial.getEntry(key);   // the old value may be null
+    V old = spatial.put(key, value);
+    if (stored != null)
+      unindex(stored.getKey(), old);
+    K k = attribute.apply(value);
+    if (k != null) {
+      Set<Coord<X,Y>> bucket = index.get(k);
+      if (bucket == null) {
+        bucket = Collections.newSetFromMap(new IdentityHashMap<Coord<X,Y>, Boolean>());
+        index.put(k, bucket);
+      }
+      bucket.add(key);                  // the spatial map now stores this key object
+    }
+    return old;
+  }
+
+  /**
+   * Removes the entry with the specified key, if present, and returns its value.
+   * @param key  the key whose entry is to be removed from the map
+   * @return the previous value associated with the removed key, or null if no such entry exists
+   */
+  @Override
+  public V remove(Coord<X,Y> key) throws IllegalArgumentException {
+    Entry<Coord<X,Y>,V> stored = spatial.getEntry(key);
+    if (stored == null)
+      return null;
+    V old = spatial.remove(key);
+    unindex(stored.getKey(), old);
+    return old;
+  }
+
+  /** Removes the stored key from the bucket of value's attribute */
+  private void unindex(Coord<X,Y> key, V value) {
+    K k = attribute.apply(value);
+    if (k == null)
+      return;
+    Set<Coord<X,Y>> bucket = index.get(k);
+    bucket.remove(key);
+    if (bucket.isEmpty())
+      index.remove(k);
+  }
+
+  /**
+   * Returns an iterable collection of all key-value entries of the map.
+   * @return iterable collection of the map's entries
+   */
+  @Override
+  public Iterable<Entry<Coord<X,Y>,V>> entrySet() {
+    return spatial.entrySet();
+  }
+
+  @Override
+  public Iterable<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    return spatial.subMap(nwCorner, seCorner, visitor);
+  }
+
+  @Override
+  public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    return spatial.forEachInRange(nwCorner, seCorner, sink);
+  }
+
+  @Override
+  public int countInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) throws IllegalArgumentException {
+    return spatial.countInRange(nwCorner, seCorner);
+  }
+
+  /**
+   * Returns the entries with keys inside the bounding box whose attribute lies between
+   * from and to, all inclusive. The index expected to yield fewer candidates drives the
+   * search, and the other condition is checked on each candidate.
+   * @param from  the least attribute wanted
+   * @param to    the greatest attribute wanted
+   * @return list of the matching entries
+   * @throws IllegalArgumentException if a corner or bound is not compatible with the map
+   */
+  public List<Entry<Coord<X,Y>,V>> query(final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner,
+                                         final K from, final K to) throws IllegalArgumentException {
+    final List<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>();
+    if (compK.compare(from, to) > 0)
+      return buffer;
+    int inBox = spatial.countInRange(nwCorner, seCorner);
+    if (countInAttributeRange(from, to, inBox) < inBox) {
+      // drive from the attribute index, scanning only the buckets in the range
+      attributePlans++;
+      // and reporting the entries stored in the spatial map, as the other plan does
+      for (Entry<K, Set<Coord<X,Y>>> e = index.ceilingEntry(from);
+           e != null && compK.compare(e.getKey(), to) <= 0; e = index.higherEntry(e.getKey()))
+        for (Coord<X,Y> c : e.getValue())
+          if (inBox(c, nwCorner, seCorner))
+            buffer.add(spatial.getEntry(c));
+    } else {
+      // drive from the spatial index, checking the attribute of each entry in the box
+      spatialPlans++;
+      spatial.forEachInRange(nwCorner, seCorner, e -> {
+        K k = attribute.apply(e.getValue());
+        if (k != null && compK.compare(k, from) >= 0 && compK.compare(k, to) <= 0)
+          buffer.add(e);
+        return true;
+      });
+    }
+    return buffer;
+  }
+
+  /**
+   * Counts the indexed entries with attribute between from and to (inclusive), but
+   * stops as soon as the count reaches cap, so the work is bounded by the cheaper plan.
+   */
+  private int countInAttributeRange(K from, K to, int cap) {
+    int count = 0;
+    for (Entry<K, Set<Coord<X,Y>>> e = index.ceilingEntry(from);
+         e != null && count < cap && compK.compare(e.getKey(), to) <= 0; e = index.higherEntry(e.getKey()))
+      count += e.getValue().size();
+    return count;
+  }
+
+  /** Tests whether key lies inside the box with the given corners (inclusive) */
+  private boolean inBox(Coord<X,Y> key, Coord<X,Y> nwCorner, Coord<X,Y> seCorner) {
+    return compX.compare(key.getX(), nwCorner.getX()) >= 0 && compX.compare(key.getX(), seCorner.getX()) <= 0
+        && compY.compare(key.getY(), nwCorner.getY()) <= 0 && compY.compare(key.getY(), seCorner.getY()) >= 0;
+  }
+
+  /** Returns the number of queries driven from the spatial index */
+  public long getSpatialPlans() {
+    return spatialPlans;
+  }
+
+  /** Returns the number of queries driven from the attribute index */
+  public long getAttributePlans() {
+    return attributePlans;
+  }
+
+  /** Resets the planner counters */
+  public void resetPlanCounters() {
+    spatialPlans = 0;
+    attributePlans = 0;
+  }
+}
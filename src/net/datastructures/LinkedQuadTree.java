@@ -205,6 +205,7 @@ public class LinkedQuadTree<E> extends AbstractQuadTree<E> {
    * @return the Position of the new element
    * @throws IllegalStateException if the tree is not empty
    */
+  @Override
   public Position<E> addRoot(E e) throws IllegalStateException {
     if (!isEmpty()) throw new IllegalStateException("Tree is not empty");
     root = createNode(e, null, null, null, null, null);
@@ -221,6 +222,7 @@ public class LinkedQuadTree<E> extends AbstractQuadTree<E> {
    * @throws IllegalArgumentException if p is not a valid Position for this tree
    * @throws IllegalArgumentException if p already has a left child
    */
+  @Override
   public Position<E> addNW(Position<E> p, E e) throws IllegalArgumentException {
     Node<E> parent = validate(p);
     if (parent.getNW() != null)
@@ -240,6 +242,7 @@ public class LinkedQuadTree<E> extends AbstractQuadTree<E> {
    * @throws IllegalArgumentException if p is not a valid Position for this tree.
    * @throws IllegalArgumentException if p already has a right child
    */
+  @Override
   public Position<E> addNE(Position<E> p, E e) throws IllegalArgumentException {
     Node<E> parent = validate(p);
     if (parent.getNE() != null)
@@ -259,6 +262,7 @@ public class LinkedQuadTree<E> extends AbstractQuadTree<E> {
    * @throws IllegalArgumentException if p is not a valid Position for this tree
    * @throws IllegalArgumentException if p already has a left child
    */
+  @Override
   public Position<E> addSW(Position<E> p, E e) throws IllegalArgumentException {
     Node<E> parent = validate(p);
     if (parent.getSW() != null)
@@ -278,6 +282,7 @@ public class LinkedQuadTree<E> extends AbstractQuadTree<E> {
    * @throws IllegalArgumentException if p is not a valid Position for this tree.
    * @throws IllegalArgumentException if p already has a right child
    */
+  @Override
   public Position<E> addSE(Position<E> p, E e) throws IllegalArgumentException {
     Node<E> parent = validate(p);
     if (parent.getSE() != null)
@@ -297,6 +302,7 @@ public class LinkedQuadTree<E> extends AbstractQuadTree<E> {
    * @return the replaced element
    * @throws IllegalArgumentException if p is not a valid Position for this tree.
    */
+  @Override
   public E set(Position<E> p, E e) throws IllegalArgumentException {
     Node<E> node = validate(p);
     E temp = node.getElement();
@@ -305,14 +311,91 @@ public class LinkedQuadTree<E> extends AbstractQuadTree<E> {
   }
 
   /**
-   * Removes the node at Position p and replaces it with its child, if any.
+   * Attaches trees tNW, tNE, tSW and tSE, respectively, as the NW, NE, SW and SE
+   * subtrees of the leaf Position p. As a side effect, the four trees are set to
+   * empty trees.
+   *
+   * @param p    a leaf of the tree
+   * @param tNW  an independent tree whose structure becomes the NW child of p
+   * @param tNE  an independent tree whose structure becomes the NE child of p
+   * @param tSW  an independent tree whose structure becomes the SW child of p
+   * @param tSE  an independent tree whose structure becomes the SE child of p
+   * @throws IllegalArgumentException if p is not a valid Position for this tree
+   * @throws IllegalArgumentException if p is not a leaf
+   */
+  public void attach(Position<E> p, LinkedQuadTree<E> tNW, LinkedQuadTree<E> tNE,
+                     LinkedQuadTree<E> tSW, LinkedQuadTree<E> tSE) throws IllegalArgumentException {
+    Node<E> node = validate(p);
+    if (isInternal(p)) throw new IllegalArgumentException("p must be a leaf");
+    size += tNW.size() + tNE.size() + tSW.size() + tSE.size();
+    if (!tNW.isEmpty()) {                 // attach tNW as NW subtree of node
+      tNW.root.setParent(node);
+      node.setNW(tNW.root);
+      tNW.root = null;
+      tNW.size = 0;
+    }
+    if (!tNE.isEmpty()) {                 // attach tNE as NE subtree of node
+      tNE.root.setParent(node);
+      node.setNE(tNE.root);
+      tNE.root = null;
+      tNE.size = 0;
+    }
+    if (!tSW.isEmpty()) {                 // attach tSW as SW subtree of node
+      tSW.root.setParent(node);
+      node.setSW(tSW.root);
+      tSW.root = null;
+      tSW.size = 0;
+    }
+    if (!tSE.isEmpty()) {                 // attach tSE as SE subtree of node
+      tSE.root.setParent(node);
+      node.setSE(tSE.root);
+      tSE.root = null;
+      tSE.size = 0;
+    }
+  }
+
+  /**
+   * Removes the node at Position p together with all of its descendants. The
+   * removed positions become invalid. The work done is proportional to the number
+   * of nodes removed.
    *
    * @param p   the relevant Position
    * @return element that was removed
    * @throws IllegalArgumentException if p is not a valid Position for this tree.
-   * @throws IllegalArgumentException if p has two children.
    */
+  @Override
   public E remove(Position<E> p) throws IllegalArgumentException {
-    throw new UnsupportedOperationException("This QuadTree only supports adding not removing");
+    Node<E> node = validate(p);
+    if (node == root)
+      root = null;
+    else {
+      Node<E> parent = node.getParent();
+      if (node == parent.getNW())
+        parent.setNW(null);
+      else if (node == parent.getNE())
+        parent.setNE(null);
+      else if (node == parent.getSW())
+        parent.setSW(null);
+      else
+        parent.setSE(null);
+    }
+    E temp = node.getElement();
+    LinkedQueue<Node<E>> fringe = new LinkedQueue<>();
+    fringe.enqueue(node);
+    while (!fringe.isEmpty()) {
+      Node<E> n = fringe.dequeue();
+      if (n.getNW() != null) fringe.enqueue(n.getNW());
+      if (n.getNE() != null) fringe.enqueue(n.getNE());
+      if (n.getSW() != null) fringe.enqueue(n.getSW());
+      if (n.getSE() != null) fringe.enqueue(n.getSE());
+      size--;
+      n.setElement(null);                // help garbage collection
+      n.setNW(null);
+      n.setNE(null);
+      n.setSW(null);
+      n.setSE(null);
+      n.setParent(n);                    // our convention for defunct node
+    }
+    return temp;
   }
 } //----------- end of LinkedBinaryTree class -----------
@@ -0,0 +1,236 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * A point quadtree map into which many threads may insert at once, without locks.
+ *
+ * A new entry is linked into an empty child slot of its parent with a single
+ * compare-and-set, so inserts into different parts of the tree never contend, and
+ * a thread that loses the race for a slot simply continues its descent from the node
+ * that won it. Replacing the value of an existing key is a single atomic swap, so
+ * every put on a key sees the value of exactly one earlier put.
+ *
+ * Keys and links are never changed once published, so get and range searches may run
+ * at any time; they see every insert that finished before they started, and each entry
+ * they report pairs a key with a value that was really stored under it. Entries
+ * cannot be removed.
+ */
+public class LockFreeSpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements Sorted2DMap<X,Y,V> {
+
+  //---------------- nested Node class ----------------
+  /**
+   * A node of the tree. The key is fixed; the value and the four child slots are only
+   * read and written through the VarHandles below.
+   */
+  protected static class Node<X,Y,V> implements Position<Entry<Coord<X,Y>,V>> {
+    private final Coord<X,Y> key;
+    private volatile V value;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Node<X,Y,V>[] children = (Node<X,Y,V>[]) new Node[4];  // indexed by quadrant
+
+    public Node(Coord<X,Y> key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    /** Returns the key together with the value it holds at the time of the call */
+    @Override
+    public Entry<Coord<X,Y>,V> getElement() { return new MapEntry<>(key, value); }
+  } //----------- end of nested Node class -----------
+
+  private static final VarHandle ROOT;
+  private static final VarHandle VALUE;
+  private static final VarHandle CHILD = MethodHandles.arrayElementVarHandle(Node[].class);
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      ROOT = lookup.findVarHandle(LockFreeSpatialTreeMap.class, "root", Node.class);
+      VALUE = lookup.findVarHandle(Node.class, "value", Object.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  // instance variables
+  private final Comparator<X> compX;
+  private final Comparator<Y> compY;
+  private volatile Node<X,Y,V> root = null;
+  private final LongAdder size = new LongAdder();   // counts inserts without a shared hot spot
+
+  /** Constructs an empty map using the natural ordering of keys */
+  public LockFreeSpatialTreeMap() {
+    this(new DefaultComparator<X>(), new DefaultComparator<Y>());
+  }
+
+  /** Constructs an empty map using the given comparators to order keys */
+  public LockFreeSpatialTreeMap(Comparator<X> cx, Comparator<Y> cy) {
+    compX = cx;
+    compY = cy;
+  }
+
+  /** Determines whether a key is valid. */
+  protected boolean checkKey(Coord<X,Y> key) throws IllegalArgumentException {
+    try {
+      return (compX.compare(key.getX(),key.getX())==0) && (compY.compare(key.getY(),key.getY())==0);   // see if key can be compared to itself
+    } catch (ClassCastException e) {
+      throw new IllegalArgumentException("Incompatible key");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <X,Y,V> Node<X,Y,V> child(Node<X,Y,V> node, int quadrant) {
+    return (Node<X,Y,V>) CHILD.getVolatile(node.children, quadrant);
+  }
+
+  /**
+   * Returns the number of entries in the map. While inserts are running, the answer
+   * may miss some of them.
+   * @return number of entries in the map
+   */
+  @Override
+  public int size() {
+    return size.intValue();
+  }
+
+  /**
+   * Returns the value associated with the specified key, or null if no such entry exists.
+   * @param key  the key whose associated value is to be returned
+   * @return the associated value, or null if no such entry exists
+   */
+  @Override
+  public V get(Coord<X,Y> key) throws IllegalArgumentException {
+    checkKey(key);
+    Node<X,Y,V> node = root;
+    while (node != null) {
+      int q = SpatialTreeMap.quadrant(compX, compY, node.key, key);
+      if (q == SpatialTreeMap.SAME)
+        return node.value;
+      node = child(node, q);
+    }
+    return null;
+  }
+
+  /**
+   * Associates the given value with the given key. If an entry with the key was already
+   * in the map, its value is swapped atomically and the old value is returned.
+   * @param key    key with which the specified value is to be associated
+   * @param value  value to be associated with the specified key
+   * @return the previous value associated with the key (or null, if no such entry)
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(Coord<X,Y> key, V value) throws IllegalArgumentException {
+    checkKey(key);
+    Node<X,Y,V> added = new Node<>(key, value);
+    Node<X,Y,V> node = root;
+    if (node == null) {
+      if (ROOT.compareAndSet(this, null, added)) {
+        size.increment();
+        return null;
+      }
+      node = root;                      // another thread planted the root first
+    }
+    while (true) {
+      int q = SpatialTreeMap.quadrant(compX, compY, node.key, key);
+      if (q == SpatialTreeMap.SAME)
+        return (V) VALUE.getAndSet(node, value);
+      Node<X,Y,V> next = child(node, q);
+      if (next == null) {
+        if (CHILD.compareAndSet(node.children, q, null, added)) {
+          size.increment();
+          return null;
+        }
+        next = child(node, q);          // lost the race; descend into the winner
+      }
+      node = next;
+    }
+  }
+
+  /**
+   * Entries cannot be removed from this map.
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public V remove(Coord<X,Y> key) {
+    throw new UnsupportedOperationException("remove not supported");
+  }
+
+  /**
+   * Returns a snapshot of all key-value entries of the map.
+   * @return iterable collection of the map's entries
+   */
+  @Override
+  public Iterable<Entry<Coord<X,Y>,V>> entrySet() {
+    ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>(size());
+    ArrayDeque<Node<X,Y,V>> stack = new ArrayDeque<>();
+    if (root != null)
+      stack.push(root);
+    while (!stack.isEmpty()) {
+      Node<X,Y,V> node = stack.pop();
+      buffer.add(node.getElement());
+      for (int q = SpatialTreeMap.SE; q >= SpatialTreeMap.NW; q--) {
+        Node<X,Y,V> c = child(node, q);
+        if (c != null)
+          stack.push(c);
+      }
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns a list of the entries with keys inside the bounding box, inclusive.
+   * @param nwCorner  north-west corner of the box
+   * @param seCorner  south-east corner of the box
+   * @param visitor   called on each position explored (may be null)
+   * @return list with keys in desired range
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public Iterable<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    List<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>();
+    search(nwCorner, seCorner, visitor, e -> { buffer.add(e); return true; });
+    return buffer;
+  }
+
+  /**
+   * Passes each entry with a key inside the bounding box (inclusive) to the sink,
+   * stopping as soon as the sink returns false.
+   * @return true if every entry in the box was passed to the sink, false if the sink stopped the search
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    return search(nwCorner, seCorner, null, sink);
+  }
+
+  // utility shared by the range searches; getElement reads each node's value once,
+  // so the key and value reported always belong together
+  private boolean search(Coord<X,Y> nwCorner, Coord<X,Y> seCorner,
+                         Visitor<Entry<Coord<X,Y>,V>> visitor, Predicate<? super Entry<Coord<X,Y>,V>> sink) {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    return SpatialTreeMap.searchNodes(compX, compY, root, LockFreeSpatialTreeMap::child, nwCorner, seCorner, visitor, sink);
+  }
+}
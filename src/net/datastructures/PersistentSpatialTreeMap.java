@@ -0,0 +1,291 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * An immutable map from coordinates to values, organized as a point quadtree.
+ *
+ * Updates never change a map: put and remove return a new version, which shares every
+ * subtree the update did not touch with the old one. A version is therefore its own
+ * snapshot, taken in O(1) by keeping a reference to it, and may be read by any number
+ * of threads without locking. A version that is no longer referenced, along with the
+ * nodes only it uses, is reclaimed by the garbage collector.
+ *
+ * Keys are placed with the same quadrant rules as SpatialTreeMap.
+ */
+public class PersistentSpatialTreeMap<X,Y,V> {
+
+  //---------------- nested Node class ----------------
+  /** An immutable node, serving both as the entry it holds and as its position */
+  protected static class Node<X,Y,V> implements Entry<Coord<X,Y>,V>, Position<Entry<Coord<X,Y>,V>> {
+    private final Coord<X,Y> key;
+    private final V value;
+    private final Node<X,Y,V>[] children;   // indexed by quadrant; never changed once the node is built
+
+    Node(Coord<X,Y> key, V value, Node<X,Y,V>[] children) {
+      this.key = key;
+      this.value = value;
+      this.children = children;
+    }
+
+    @Override
+    public Coord<X,Y> getKey() { return key; }
+    @Override
+    public V getValue() { return value; }
+    @Override
+    public Entry<Coord<X,Y>,V> getElement() { return this; }
+    @Override
+    public String toString() { return "<" + key + ", " + value + ">"; }
+
+    /** Returns a copy of this node with the given child in the given quadrant */
+    Node<X,Y,V> withChild(int quadrant, Node<X,Y,V> child) {
+      Node<X,Y,V>[] copy = children.clone();
+      copy[quadrant] = child;
+      return new Node<>(key, value, copy);
+    }
+  } //----------- end of nested Node class -----------
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static <X,Y,V> Node<X,Y,V>[] noChildren() {
+    return (Node<X,Y,V>[]) new Node[4];
+  }
+
+  // instance variables
+  private final Comparator<X> compX;
+  private final Comparator<Y> compY;
+  private final Node<X,Y,V> root;
+  private final int size;
+
+  /** Constructs an empty map using the natural ordering of keys */
+  public PersistentSpatialTreeMap() {
+    this(new DefaultComparator<X>(), new DefaultComparator<Y>());
+  }
+
+  /** Constructs an empty map using the given comparators to order keys */
+  public PersistentSpatialTreeMap(Comparator<X> cx, Comparator<Y> cy) {
+    this(cx, cy, null, 0);
+  }
+
+  private PersistentSpatialTreeMap(Comparator<X> cx, Comparator<Y> cy, Node<X,Y,V> root, int size) {
+    compX = cx;
+    compY = cy;
+    this.root = root;
+    this.size = size;
+  }
+
+  /** Determines whether a key is valid. */
+  protected boolean checkKey(Coord<X,Y> key) throws IllegalArgumentException {
+    try {
+      return (compX.compare(key.getX(),key.getX())==0) && (compY.compare(key.getY(),key.getY())==0);   // see if key can be compared to itself
+    } catch (ClassCastException e) {
+      throw new IllegalArgumentException("Incompatible key");
+    }
+  }
+
+  /**
+   * Returns the number of entries in this version.
+   * @return number of entries in the map
+   */
+  public int size() { return size; }
+
+  /**
+   * Tests whether this version is empty.
+   * @return true if the map is empty, false otherwise
+   */
+  public boolean isEmpty() { return size == 0; }
+
+  /**
+   * Returns the value associated with the specified key, or null if no such entry exists.
+   * @param key  the key whose associated value is to be returned
+   * @return the associated value, or null if no such entry exists
+   */
+  public V get(Coord<X,Y> key) throws IllegalArgumentException {
+    checkKey(key);
+    Node<X,Y,V> node = root;
+    while (node != null) {
+      int q = SpatialTreeMap.quadrant(compX, compY, node.key, key);
+      if (q == SpatialTreeMap.SAME)
+        return node.value;
+      node = node.children[q];
+    }
+    return null;
+  }
+
+  /**
+   * Tests whether this version holds an entry with the specified key.
+   * @param key  the key to look for
+   * @return true if the key is in the map, false otherwise
+   */
+  public boolean containsKey(Coord<X,Y> key) throws IllegalArgumentException {
+    return findPath(key, new ArrayList<>(), new ArrayList<>()) != null;
+  }
+
+  // utility walking from the root towards key, recording the nodes passed and the
+  // quadrant taken at each; returns the node holding key, or null if it is absent
+  private Node<X,Y,V> findPath(Coord<X,Y> key, List<Node<X,Y,V>> path, List<Integer> quadrants) {
+    checkKey(key);
+    Node<X,Y,V> node = root;
+    while (node != null) {
+      int q = SpatialTreeMap.quadrant(compX, compY, node.key, key);
+      if (q == SpatialTreeMap.SAME)
+        return node;
+      path.add(node);
+      quadrants.add(q);
+      node = node.children[q];
+    }
+    return null;
+  }
+
+  // utility copying the recorded path bottom-up so that it leads to replacement
+  // (which may be null) instead of the node below its last step; returns the new root
+  private Node<X,Y,V> copyPath(List<Node<X,Y,V>> path, List<Integer> quadrants, Node<X,Y,V> replacement) {
+    Node<X,Y,V> node = replacement;
+    for (int i = path.size() - 1; i >= 0; i--)
+      node = path.get(i).withChild(quadrants.get(i), node);
+    return node;
+  }
+
+  /**
+   * Returns a version of this map in which the given key is associated with the given
+   * value. Only the nodes on the path from the root to the key are copied.
+   * @param key    key with which the specified value is to be associated
+   * @param value  value to be associated with the specified key
+   * @return the new version (this version, if it already maps key to value)
+   * @throws IllegalArgumentException if <code>key</code> is not compatible with the map
+   */
+  public PersistentSpatialTreeMap<X,Y,V> put(Coord<X,Y> key, V value) throws IllegalArgumentException {
+    List<Node<X,Y,V>> path = new ArrayList<>();
+    List<Integer> quadrants = new ArrayList<>();
+    Node<X,Y,V> found = findPath(key, path, quadrants);
+    if (found == null)
+      return new PersistentSpatialTreeMap<>(compX, compY,
+          copyPath(path, quadrants, new Node<>(key, value, noChildren())), size + 1);
+    if (found.value == value)
+      return this;
+    return new PersistentSpatialTreeMap<>(compX, compY,
+        copyPath(path, quadrants, new Node<>(found.key, value, found.children)), size);
+  }
+
+  /**
+   * Returns a version of this map without the given key. The path to the key is copied,
+   * and the descendants of its node are inserted again into a new subtree in the order
+   * they were found, breadth first.
+   * @param key  the key whose entry is to be removed
+   * @return the new version (this version, if the key is absent)
+   * @throws IllegalArgumentException if <code>key</code> is not compatible with the map
+   */
+  public PersistentSpatialTreeMap<X,Y,V> remove(Coord<X,Y> key) throws IllegalArgumentException {
+    List<Node<X,Y,V>> path = new ArrayList<>();
+    List<Integer> quadrants = new ArrayList<>();
+    Node<X,Y,V> found = findPath(key, path, quadrants);
+    if (found == null)
+      return this;
+    // the replacement subtree is built from fresh nodes, so it may be grown in place
+    // before the new version publishes it
+    Node<X,Y,V> subtree = null;
+    ArrayDeque<Node<X,Y,V>> queue = new ArrayDeque<>();
+    for (Node<X,Y,V> c : found.children)
+      if (c != null)
+        queue.add(c);
+    while (!queue.isEmpty()) {
+      Node<X,Y,V> n = queue.remove();
+      subtree = insertFresh(subtree, n.key, n.value);
+      for (Node<X,Y,V> c : n.children)
+        if (c != null)
+          queue.add(c);
+    }
+    return new PersistentSpatialTreeMap<>(compX, compY, copyPath(path, quadrants, subtree), size - 1);
+  }
+
+  // utility adding a key known to be absent to a subtree made only of unpublished nodes
+  private Node<X,Y,V> insertFresh(Node<X,Y,V> subtree, Coord<X,Y> key, V value) {
+    Node<X,Y,V> added = new Node<>(key, value, noChildren());
+    if (subtree == null)
+      return added;
+    Node<X,Y,V> node = subtree;
+    while (true) {
+      int q = SpatialTreeMap.quadrant(compX, compY, node.key, key);
+      if (node.children[q] == null) {
+        node.children[q] = added;
+        return subtree;
+      }
+      node = node.children[q];
+    }
+  }
+
+  /**
+   * Returns all entries of this version, in preorder.
+   * @return iterable collection of the map's entries
+   */
+  public Iterable<Entry<Coord<X,Y>,V>> entrySet() {
+    ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>(size);
+    ArrayDeque<Node<X,Y,V>> stack = new ArrayDeque<>();
+    if (root != null)
+      stack.push(root);
+    while (!stack.isEmpty()) {
+      Node<X,Y,V> node = stack.pop();
+      buffer.add(node);
+      for (int q = SpatialTreeMap.SE; q >= SpatialTreeMap.NW; q--)
+        if (node.children[q] != null)
+          stack.push(node.children[q]);
+    }
+    return buffer;
+  }
+
+  /**
+   * Returns a list of the entries with keys inside the bounding box, inclusive.
+   * @return list with keys in desired range
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public List<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) throws IllegalArgumentException {
+    return subMap(nwCorner, seCorner, null);
+  }
+
+  /**
+   * Returns a list of the entries with keys inside the bounding box, inclusive.
+   * @param visitor  called on each position explored (may be null)
+   * @return list with keys in desired range
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public List<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    List<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>();
+    search(nwCorner, seCorner, visitor, e -> { buffer.add(e); return true; });
+    return buffer;
+  }
+
+  /**
+   * Passes each entry with a key inside the bounding box (inclusive) to the sink,
+   * stopping as soon as the sink returns false.
+   * @return true if every entry in the box was passed to the sink, false if the sink stopped the search
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    return search(nwCorner, seCorner, null, sink);
+  }
+
+  // utility shared by the range searches
+  private boolean search(Coord<X,Y> nwCorner, Coord<X,Y> seCorner,
+                         Visitor<Entry<Coord<X,Y>,V>> visitor, Predicate<? super Entry<Coord<X,Y>,V>> sink) {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    return SpatialTreeMap.searchNodes(compX, compY, root, (node, q) -> node.children[q], nwCorner, seCorner, visitor, sink);
+  }
+}
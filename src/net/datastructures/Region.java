@@ -0,0 +1,65 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+/**
+ * The part of the plane covered by a subtree of a SpatialTreeMap.
+ *
+ * A region is a closed box; a null bound means the region is unbounded on that
+ * side. Every key stored in the subtree lies inside its region. The region of a
+ * quadrant is computed from the region of its parent and the key stored at the
+ * parent, following the quadrant rules of SpatialTreeMap: keys in the NW quadrant
+ * have a greater x and a smaller y than the parent's key, keys in the NE quadrant
+ * have a smaller or equal x and y, keys in the SW quadrant have a greater x and a
+ * greater or equal y, and keys in the SE quadrant have a smaller or equal x and a
+ * greater y. Strict bounds are recorded as closed ones, so a region may be slightly
+ * larger than the set of keys it can actually hold, but never smaller.
+ */
+public class Region<X,Y> {
+    private final X minX;
+    private final Y minY;
+    private final X maxX;
+    private final Y maxY;
+
+    public Region(X minX, Y minY, X maxX, Y maxY) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    /** Returns the region covering the whole plane */
+    public static <X,Y> Region<X,Y> unbounded() {
+        return new Region<>(null, null, null, null);
+    }
+
+    // accessor methods; null means unbounded
+    public X getMinX() { return minX; }
+    public Y getMinY() { return minY; }
+    public X getMaxX() { return maxX; }
+    public Y getMaxY() { return maxY; }
+
+    // regions of the four quadrants of a node holding key c and covering this region
+    public Region<X,Y> nw(Coord<X,Y> c) { return new Region<>(c.getX(), minY, maxX, c.getY()); }
+    public Region<X,Y> ne(Coord<X,Y> c) { return new Region<>(minX, minY, c.getX(), c.getY()); }
+    public Region<X,Y> sw(Coord<X,Y> c) { return new Region<>(c.getX(), c.getY(), maxX, maxY); }
+    public Region<X,Y> se(Coord<X,Y> c) { return new Region<>(minX, c.getY(), c.getX(), maxY); }
+
+    @Override
+    public String toString() {
+        return "[" + (minX == null ? "-inf" : minX) + ", " + (maxX == null ? "inf" : maxX) + "] x ["
+                + (minY == null ? "-inf" : minY) + ", " + (maxY == null ? "inf" : maxY) + "]";
+    }
+}
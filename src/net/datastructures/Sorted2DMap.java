@@ -1,5 +1,8 @@
 package net.datastructures;
 
+import java.util.List;
+import java.util.function.Predicate;
+
 /**
  * A map where keys are composed of a "Coord" (short for coordinate) of two ordered dimensions X and Y.
  * X and Y need not be the same type.
@@ -15,4 +18,38 @@ package net.datastructures;
 public interface Sorted2DMap<X,Y,V> extends Map<Coord<X,Y>,V>{
 
     public Iterable<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException;
+
+    /**
+     * Passes each entry with a key inside the bounding box to the sink, without
+     * collecting them, and stops as soon as the sink returns false.
+     * @return true if the search ran to completion, false if the sink stopped it
+     */
+    public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException;
+
+    /**
+     * Returns the number of entries with a key inside the bounding box, without
+     * collecting them. This default counts the entries one at a time with forEachInRange.
+     */
+    public default int countInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) throws IllegalArgumentException {
+        final int[] count = new int[1];
+        forEachInRange(nwCorner, seCorner, e -> { count[0]++; return true; });
+        return count[0];
+    }
+
+    /**
+     * Passes each entry with a key inside any of the bounding boxes to the sink, and
+     * stops as soon as the sink returns false. This default runs one forEachInRange per
+     * box, so an entry inside several boxes is reported once for each of them;
+     * implementations may search all boxes in a single pass instead.
+     * @return true if the search ran to completion, false if the sink stopped it
+     */
+    public default boolean forEachInRanges(List<Coord<X,Y>> nwCorners, List<Coord<X,Y>> seCorners,
+                                           Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+        if (nwCorners.size() != seCorners.size())
+            throw new IllegalArgumentException("Each box needs two corners");
+        for (int i = 0; i < nwCorners.size(); i++)
+            if (!forEachInRange(nwCorners.get(i), seCorners.get(i), sink))
+                return false;
+        return true;
+    }
 }
@@ -14,9 +14,20 @@
  */
 package net.datastructures;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 /**
  * An implementation of a map using a quad search tree.
@@ -25,7 +36,7 @@ import java.util.Iterator;
  */
 public class SpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements Sorted2DMap<X,Y,V>  {
 
-  protected LinkedQuadTree<Entry<Coord<X,Y>,V>> tree = new LinkedQuadTree<>();
+  protected AbstractQuadTree<Entry<Coord<X,Y>,V>> tree;
 
   /** Constructs an empty map */
   public SpatialTreeMap() {
@@ -33,9 +44,25 @@ public class SpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements
   }
 
   public SpatialTreeMap(Comparator<X> cx, Comparator<Y> cy) {
+    this(cx, cy, new LinkedQuadTree<Entry<Coord<X,Y>,V>>());
+  }
+
+  /**
+   * Constructs an empty map that stores its entries in the given quad tree,
+   * for example an ArrayQuadTree instead of the default LinkedQuadTree.
+   * @param backing  an empty quad tree
+   * @throws IllegalArgumentException if <code>backing</code> is not empty
+   */
+  public SpatialTreeMap(AbstractQuadTree<Entry<Coord<X,Y>,V>> backing) throws IllegalArgumentException {
+    this(new DefaultComparator<X>(), new DefaultComparator<Y>(), backing);
+  }
+
+  public SpatialTreeMap(Comparator<X> cx, Comparator<Y> cy, AbstractQuadTree<Entry<Coord<X,Y>,V>> backing) throws IllegalArgumentException {
+    if (!backing.isEmpty())
+      throw new IllegalArgumentException("Backing tree must be empty");
     this.compX = cx;
     this.compY = cy;
-    tree.addRoot(null);       // create a sentinel leaf as root
+    this.tree = backing;
   }
 
   // instance variable for an AbstractSortedMap
@@ -43,6 +70,36 @@ public class SpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements
   private Comparator<X> compX;
   private Comparator<Y> compY;
 
+  /** Weight bound for rebuilding unbalanced subtrees during put (1 when rebuilding is off) */
+  private double alpha = 1;
+
+  /** Aggregators whose summaries are kept for every subtree */
+  private final ArrayList<Aggregator<? super V,?>> aggregators = new ArrayList<>();
+
+  /** Counts the entries of each subtree, once trackSubtreeSizes has been called */
+  private final Aggregator<V,Integer> subtreeSizes = Aggregator.count();
+
+  /** Orders registered with addRanking, each keeping the greatest value of every subtree */
+  private final ArrayList<Ranking<V>> rankings = new ArrayList<>();
+
+  /** Indexed attributes, and the aggregators keeping their least and greatest value in each subtree */
+  private final ArrayList<ToDoubleFunction<? super V>> indexedAttributes = new ArrayList<>();
+  private final ArrayList<Aggregator<V,Double>> attributeMins = new ArrayList<>();
+  private final ArrayList<Aggregator<V,Double>> attributeMaxs = new ArrayList<>();
+
+  //---------------- nested SummaryEntry class ----------------
+  /**
+   * An entry that also holds, for each registered aggregator, the summary of the
+   * values in the subtree rooted at its node.
+   */
+  protected static class SummaryEntry<K,V> extends MapEntry<K,V> {
+    private Object[] summaries;
+
+    public SummaryEntry(K key, V value) {
+      super(key, value);
+    }
+  } //----------- end of nested SummaryEntry class -----------
+
   /** Determines whether a key is valid. */
   protected boolean checkKey(Coord<X,Y> key) throws IllegalArgumentException {
     try {
@@ -58,47 +115,77 @@ public class SpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements
    */
   @Override
   public int size() {
-      // keep in mind only internal nodes have elements
-      return (tree.size() - 1) / 4;
+      // every node of the tree holds an entry; empty quadrants are null children
+      return tree.size();
+  }
+
+  // quadrant codes returned by quadrant()
+  protected static final int SAME = -1;
+  protected static final int NW = 0;
+  protected static final int NE = 1;
+  protected static final int SW = 2;
+  protected static final int SE = 3;
+
+  /**
+   * Returns the quadrant of the node holding nodeKey in which key belongs,
+   * or SAME if the two keys are equal.
+   */
+  protected int quadrant(Coord<X,Y> nodeKey, Coord<X,Y> key) {
+      return quadrant(compX, compY, nodeKey, key);
+  }
+
+  /** Same as above, under the given comparators; shared with the other point quadtree maps */
+  static <X,Y> int quadrant(Comparator<X> compX, Comparator<Y> compY, Coord<X,Y> nodeKey, Coord<X,Y> key) {
+      int compareX = compX.compare(nodeKey.getX(), key.getX());
+      int compareY = compY.compare(nodeKey.getY(), key.getY());
+      if (compareX == 0 && compareY == 0)
+          return SAME;
+      else if (compareX < 0 && compareY > 0)
+          return NW;
+      else if (compareX >= 0 && compareY >= 0)
+          return NE;
+      else if (compareX < 0 && compareY <= 0)
+          return SW;
+      else
+          return SE;
+  }
+
+  /** Returns the child of p in the given quadrant (or null if that quadrant is empty). */
+  protected Position<Entry<Coord<X,Y>,V>> child(Position<Entry<Coord<X,Y>,V>> p, int quadrant) {
+      switch (quadrant) {
+          case NW: return tree.nw(p);
+          case NE: return tree.ne(p);
+          case SW: return tree.sw(p);
+          default: return tree.se(p);
+      }
   }
 
-  /** Utility used when inserting a new entry at a leaf of the tree */
-  private void expandExternal(Position<Entry<Coord<X,Y>,V>> p, Entry<Coord<X,Y>,V> entry) {
-      tree.set(p, entry);
-      tree.addNW(p, null);
-      tree.addNE(p, null);
-      tree.addSW(p, null);
-      tree.addSE(p, null);
+  /** Utility used when inserting a new entry into an empty quadrant of p */
+  protected Position<Entry<Coord<X,Y>,V>> addChild(Position<Entry<Coord<X,Y>,V>> p, int quadrant, Entry<Coord<X,Y>,V> entry) {
+      return addChild(tree, p, quadrant, entry);
   }
 
+  /** Same as above, for a position p of the given tree t */
+  protected static <E> Position<E> addChild(AbstractQuadTree<E> t, Position<E> p, int quadrant, E entry) {
+      switch (quadrant) {
+          case NW: return t.addNW(p, entry);
+          case NE: return t.addNE(p, entry);
+          case SW: return t.addSW(p, entry);
+          default: return t.addSE(p, entry);
+      }
+  }
 
   /**
-   * Returns the position in p's subtree having the given key (or else the terminal leaf).
+   * Returns the position in p's subtree having the given key (or else the last node
+   * reached, whose quadrant for the key is empty).
    * @param key  a target key
    * @param p  a position of the tree serving as root of a subtree
    * @return Position holding key, or last node reached during search
    */
-  private Position<Entry<Coord<X,Y>,V>> treeSearch(Position<Entry<Coord<X,Y>,V>> p, Coord<X,Y> key) {
-      if (tree.isExternal(p)){
-          return p;
-      }
-      int compareX = compX.compare(p.getElement().getKey().getX(),key.getX());
-      int compareY = compY.compare(p.getElement().getKey().getY(),key.getY());
-      if (compareX == 0 && compareY == 0){
-          return p;
-      }
-      else if (compareX < 0 && compareY > 0){
-          return treeSearch(tree.nw(p), key);
-      }
-      else if (compareX >= 0 && compareY >= 0){
-          return treeSearch(tree.ne(p), key);
-      }
-      else if (compareX < 0 && compareY <= 0){
-          return treeSearch(tree.sw(p), key);
-      }
-      else {
-          return treeSearch(tree.se(p), key);
-      }
+  private Position<Entry<Coord<X,Y>,V>> treeSearch(Position<Entry<Coord<X,Y>,V>> p, final Coord<X,Y> key) {
+      // the tree runs the loop, so that an array-backed tree can walk by index;
+      // quadrant codes match descend's, and SAME stops it
+      return tree.descend(p, e -> quadrant(e.getKey(), key));
   }
 
   /**
@@ -109,11 +196,26 @@ public class SpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements
   @Override
   public V get(Coord<X,Y> key) throws IllegalArgumentException {
       checkKey(key);
+      if (tree.isEmpty()) return null;
       Position<Entry<Coord<X,Y>,V>> p = treeSearch(tree.root(), key);
-      if (tree.isExternal(p)) return null;
+      if (quadrant(p.getElement().getKey(), key) != SAME) return null;
       return p.getElement().getValue();
   }
 
+  /**
+   * Returns the entry stored with the specified key, or null if no such entry exists.
+   * Unlike get, this tells a key mapped to null apart from a missing key.
+   * @param key  the key whose entry is to be returned
+   * @return the entry with the key, or null if no such entry exists
+   */
+  public Entry<Coord<X,Y>,V> getEntry(Coord<X,Y> key) throws IllegalArgumentException {
+      checkKey(key);
+      if (tree.isEmpty()) return null;
+      Position<Entry<Coord<X,Y>,V>> p = treeSearch(tree.root(), key);
+      if (quadrant(p.getElement().getKey(), key) != SAME) return null;
+      return p.getElement();
+  }
+
   /**
    * Associates the given value with the given key. If an entry with
    * the key was already in the map, this replaced the previous value
@@ -126,27 +228,451 @@ public class SpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements
   @Override
   public V put(Coord<X,Y> key, V value) throws IllegalArgumentException {
       checkKey(key);
-      Entry<Coord<X,Y>,V> newEntry = new MapEntry<>(key, value);
-      Position<Entry<Coord<X,Y>,V>> p = treeSearch(tree.root(), key);
-      if (tree.isExternal(p)) {
-          expandExternal(p, newEntry);
+      Entry<Coord<X,Y>,V> newEntry = (aggregators.isEmpty() ? new MapEntry<>(key, value) : new SummaryEntry<>(key, value));
+      if (tree.isEmpty()) {
+          refreshPath(tree.addRoot(newEntry));
           return null;
-      } else {
+      }
+      Position<Entry<Coord<X,Y>,V>> p = treeSearch(tree.root(), key);
+      int q = quadrant(p.getElement().getKey(), key);
+      if (q == SAME) {
           V old = p.getElement().getValue();
           tree.set(p, newEntry);
+          refreshPath(p);
           return old;
       }
+      Position<Entry<Coord<X,Y>,V>> added = addChild(p, q, newEntry);
+      refreshPath(added);
+      if (alpha < 1 && tree.depth(added) > Math.log(size()) / Math.log(1 / alpha))
+          rebuildScapegoat(added);
+      return null;
+  }
+
+  /**
+   * Sets the weight bound used to keep the tree balanced as entries are put. When a put
+   * adds a node deeper than log(n) to the base 1/alpha, the nearest ancestor of the new
+   * node with a child holding more than alpha times its own number of entries is
+   * rebuilt in balanced form (as with scapegoat trees). Every subtree then has depth
+   * logarithmic in its size, and the amortized cost of put stays logarithmic whatever
+   * the order of insertion. Rebuilding is off by default.
+   * @param alpha  a weight bound greater than 0.5 (smaller values keep the tree lower
+   *               but rebuild more often), or 1 to turn rebuilding off
+   * @throws IllegalArgumentException if alpha is not greater than 0.5 and at most 1
+   */
+  public void setRebuildAlpha(double alpha) throws IllegalArgumentException {
+    if (!(alpha > 0.5 && alpha <= 1))
+      throw new IllegalArgumentException("alpha must be greater than 0.5 and at most 1");
+    this.alpha = alpha;
+  }
+
+  /** Returns the weight bound used to keep the tree balanced (1 if rebuilding is off) */
+  public double getRebuildAlpha() {
+    return alpha;
+  }
+
+  /**
+   * Walks up from p to the first ancestor with a child holding more than alpha times
+   * the ancestor's number of entries, and rebuilds that ancestor's subtree. Sizes are
+   * counted on the way, so the cost is proportional to the size of the rebuilt subtree.
+   */
+  private void rebuildScapegoat(Position<Entry<Coord<X,Y>,V>> p) {
+      int size = 1;                     // size of the subtree rooted at p
+      Position<Entry<Coord<X,Y>,V>> parent = tree.parent(p);
+      while (parent != null) {
+          int parentSize = 1 + size;
+          for (Position<Entry<Coord<X,Y>,V>> c : tree.children(parent))
+              if (!c.equals(p))
+                  parentSize += subtreeSize(c);
+          if (size > alpha * parentSize) {
+              Entry<Coord<X,Y>,V>[] below = descendants(parent);
+              Entry<Coord<X,Y>,V>[] all = Arrays.copyOf(below, below.length + 1);
+              all[below.length] = parent.getElement();
+              replaceSubtree(parent, all);
+              return;
+          }
+          p = parent;
+          size = parentSize;
+          parent = tree.parent(p);
+      }
+  }
+
+  /** Returns the number of nodes in the subtree rooted at p */
+  private int subtreeSize(Position<Entry<Coord<X,Y>,V>> p) {
+      ArrayDeque<Position<Entry<Coord<X,Y>,V>>> stack = new ArrayDeque<>();
+      stack.push(p);
+      int count = 0;
+      while (!stack.isEmpty()) {
+          count++;
+          for (Position<Entry<Coord<X,Y>,V>> c : tree.children(stack.pop()))
+              stack.push(c);
+      }
+      return count;
+  }
+
+  /**
+   * Replaces the subtree rooted at p by a balanced subtree holding the given entries,
+   * which must all belong to the quadrant that p occupies. Removing the old subtree
+   * takes time linear in its size; building the new one takes O(m log m) for m entries.
+   */
+  private void replaceSubtree(Position<Entry<Coord<X,Y>,V>> p, Entry<Coord<X,Y>,V>[] entries) {
+      Coord<X,Y> key = p.getElement().getKey();
+      tree.remove(p);
+      // positions may not survive a removal, but searching for the key of the removed
+      // node now ends at its former parent
+      Position<Entry<Coord<X,Y>,V>> parent = (tree.isEmpty() ? null : treeSearch(tree.root(), key));
+      Arrays.sort(entries, byXY());
+      Position<Entry<Coord<X,Y>,V>> root = buildSubtree(parent, key, entries);
+      if (root != null)
+          refreshSubtree(root);
+      refreshPath(parent);
   }
 
   /**
    * Removes the entry with the specified key, if present, and returns
    * its associated value. Otherwise does nothing and returns null.
+   * The entries below the removed one are rebuilt into a balanced subtree in the
+   * quadrant it occupied, so the cost depends on the size of that subtree and not
+   * on the size of the map.
    * @param key  the key whose entry is to be removed from the map
    * @return the previous value associated with the removed key, or null if no such entry exists
    */
   @Override
   public V remove(Coord<X,Y> key) throws IllegalArgumentException {
-      throw new UnsupportedOperationException("Remove not supported in this Map");
+      checkKey(key);
+      if (tree.isEmpty()) return null;
+      Position<Entry<Coord<X,Y>,V>> p = treeSearch(tree.root(), key);
+      if (quadrant(p.getElement().getKey(), key) != SAME) return null;
+      V old = p.getElement().getValue();
+      // the descendants all belong to the quadrant that p occupied, so they can be rebuilt there
+      replaceSubtree(p, descendants(p));
+      return old;
+  }
+
+  /**
+   * Removes every entry with a key inside the bounding box, inclusive. A subtree whose
+   * whole region lies inside the box is dropped without comparing its keys to the box,
+   * though the backing tree still unlinks it node by node, in time linear in its size.
+   * A subtree whose root is inside the box but whose region is not is rebuilt from the
+   * entries that survive, in O(m log m) time for m survivors. The rest of the tree is
+   * left as it is.
+   * @return the number of entries removed
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public int removeRange(final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    if (!isValidBox(nwCorner, seCorner) || tree.isEmpty())
+      return 0;
+    // first find the subtrees to drop or rebuild; they are disjoint, and each one is
+    // recorded by the key at its root since positions may not survive a removal
+    Predicate<Region<X,Y>> covered = r -> covers(nwCorner, seCorner, r);
+    ArrayList<Coord<X,Y>> roots = new ArrayList<>();
+    ArrayList<Entry<Coord<X,Y>,V>[]> survivors = new ArrayList<>();
+    ArrayDeque<RangeFrame> stack = new ArrayDeque<>();
+    stack.push(new RangeFrame(tree.root(), Region.<X,Y>unbounded()));
+    while (!stack.isEmpty()) {
+      RangeFrame f = stack.pop();
+      Coord<X,Y> key = f.p.getElement().getKey();
+      if (f.region == null) {
+        roots.add(key);
+        survivors.add(newScratch(0));
+      } else if (inBox(key, nwCorner, seCorner)) {
+        roots.add(key);
+        survivors.add(survivors(f, nwCorner, seCorner, covered));
+      } else
+        pushCandidates(stack, f, nwCorner, seCorner, covered);
+    }
+    // then replace each of them
+    int before = size();
+    for (int i = 0; i < roots.size(); i++)
+      replaceSubtree(treeSearch(tree.root(), roots.get(i)), survivors.get(i));
+    return before - size();
+  }
+
+  /** Returns the entries below the frame's node that lie outside the box, skipping covered subtrees */
+  private Entry<Coord<X,Y>,V>[] survivors(RangeFrame start, Coord<X,Y> nwCorner, Coord<X,Y> seCorner,
+                                          Predicate<Region<X,Y>> covered) {
+    ArrayList<Entry<Coord<X,Y>,V>> kept = new ArrayList<>();
+    ArrayDeque<RangeFrame> stack = new ArrayDeque<>();
+    pushChildren(stack, start, ALL_QUADRANTS, covered);
+    while (!stack.isEmpty()) {
+      RangeFrame f = stack.pop();
+      if (f.region == null)
+        continue;                       // every entry of this subtree is in the box
+      if (!inBox(f.p.getElement().getKey(), nwCorner, seCorner))
+        kept.add(f.p.getElement());
+      pushChildren(stack, f, ALL_QUADRANTS, covered);
+    }
+    return kept.toArray(newScratch(kept.size()));
+  }
+
+  /** Returns the entries stored below p (not including p's own entry) */
+  protected Entry<Coord<X,Y>,V>[] descendants(Position<Entry<Coord<X,Y>,V>> p) {
+      ArrayList<Position<Entry<Coord<X,Y>,V>>> nodes = new ArrayList<>();
+      nodes.add(p);
+      for (int i = 0; i < nodes.size(); i++)
+          for (Position<Entry<Coord<X,Y>,V>> c : tree.children(nodes.get(i)))
+              nodes.add(c);
+      Entry<Coord<X,Y>,V>[] a = newScratch(nodes.size() - 1);
+      for (int i = 1; i < nodes.size(); i++)
+          a[i - 1] = nodes.get(i).getElement();
+      return a;
+  }
+
+  //---------- support for building a balanced tree from a batch of entries ----------
+
+  /**
+   * Builds a map holding the given entries, with a tree of near-minimal height.
+   * If the same key occurs more than once, the entry that comes last wins, as it
+   * would with a sequence of puts.
+   * @param entries  the entries to be stored
+   * @return a new map with natural ordering of both dimensions
+   * @throws IllegalArgumentException if a key is not compatible with the map
+   */
+  public static <X,Y,V> SpatialTreeMap<X,Y,V> bulkLoad(Collection<? extends Entry<Coord<X,Y>,V>> entries) throws IllegalArgumentException {
+    return bulkLoad(entries, new DefaultComparator<X>(), new DefaultComparator<Y>());
+  }
+
+  public static <X,Y,V> SpatialTreeMap<X,Y,V> bulkLoad(Collection<? extends Entry<Coord<X,Y>,V>> entries,
+                                                        Comparator<X> cx, Comparator<Y> cy) throws IllegalArgumentException {
+    return bulkLoad(entries, cx, cy, new LinkedQuadTree<Entry<Coord<X,Y>,V>>());
+  }
+
+  public static <X,Y,V> SpatialTreeMap<X,Y,V> bulkLoad(Collection<? extends Entry<Coord<X,Y>,V>> entries,
+                                                        Comparator<X> cx, Comparator<Y> cy,
+                                                        AbstractQuadTree<Entry<Coord<X,Y>,V>> backing) throws IllegalArgumentException {
+    SpatialTreeMap<X,Y,V> map = new SpatialTreeMap<>(cx, cy, backing);
+    map.buildSubtree(null, null, map.sortedEntries(entries, false));
+    return map;
+  }
+
+  /**
+   * Builds the same tree as bulkLoad, using the common fork/join pool.
+   * @param entries  the entries to be stored
+   * @return a new map with natural ordering of both dimensions
+   * @throws IllegalArgumentException if a key is not compatible with the map
+   */
+  public static <X,Y,V> SpatialTreeMap<X,Y,V> parallelBulkLoad(Collection<? extends Entry<Coord<X,Y>,V>> entries) throws IllegalArgumentException {
+    return parallelBulkLoad(entries, new DefaultComparator<X>(), new DefaultComparator<Y>(), ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Builds the same tree as bulkLoad, using the given fork/join pool. The entries are
+   * sorted with a parallel sort. Then, for every run larger than PARALLEL_BUILD_CUTOFF,
+   * the pivot is chosen, the run is partitioned into the pivot's four quadrants, and
+   * the four quadrant subtrees are built concurrently as separate LinkedQuadTrees before
+   * being attached below the pivot's node. Smaller runs are built sequentially.
+   * @param entries  the entries to be stored
+   * @param pool     the pool running the build tasks
+   * @return a new map backed by a LinkedQuadTree
+   * @throws IllegalArgumentException if a key is not compatible with the map
+   */
+  public static <X,Y,V> SpatialTreeMap<X,Y,V> parallelBulkLoad(Collection<? extends Entry<Coord<X,Y>,V>> entries,
+                                                                Comparator<X> cx, Comparator<Y> cy,
+                                                                ForkJoinPool pool) throws IllegalArgumentException {
+    SpatialTreeMap<X,Y,V> map = new SpatialTreeMap<>(cx, cy);
+    Entry<Coord<X,Y>,V>[] sorted = map.sortedEntries(entries, true);
+    if (sorted.length > 0)
+      map.tree = pool.invoke(new BuildTask<>(map, sorted, map.newScratch(sorted.length), new byte[sorted.length], 0, sorted.length));
+    return map;
+  }
+
+  /** Runs smaller than this are built by a single task */
+  protected static final int PARALLEL_BUILD_CUTOFF = 8192;
+
+  //---------------- nested BuildTask class ----------------
+  /** Builds the subtree for the run a[lo, hi) as an independent LinkedQuadTree. */
+  @SuppressWarnings("serial")
+  private static class BuildTask<X,Y,V> extends RecursiveTask<LinkedQuadTree<Entry<Coord<X,Y>,V>>> {
+    private final SpatialTreeMap<X,Y,V> map;
+    private final Entry<Coord<X,Y>,V>[] a;
+    private final Entry<Coord<X,Y>,V>[] scratch;
+    private final byte[] codes;
+    private final int lo;
+    private final int hi;
+
+    BuildTask(SpatialTreeMap<X,Y,V> map, Entry<Coord<X,Y>,V>[] a, Entry<Coord<X,Y>,V>[] scratch, byte[] codes, int lo, int hi) {
+      this.map = map;
+      this.a = a;
+      this.scratch = scratch;
+      this.codes = codes;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected LinkedQuadTree<Entry<Coord<X,Y>,V>> compute() {
+      LinkedQuadTree<Entry<Coord<X,Y>,V>> t = new LinkedQuadTree<>();
+      if (lo == hi)
+        return t;                       // empty quadrant
+      int m = map.choosePivot(a, lo, hi);
+      Position<Entry<Coord<X,Y>,V>> root = t.addRoot(a[m]);
+      if (hi - lo <= PARALLEL_BUILD_CUTOFF) {
+        map.buildBalanced(t, root, a, scratch, codes, lo, hi, m);
+        return t;
+      }
+      // the tasks below work on disjoint runs of the shared arrays
+      int[] bounds = map.partition(a, scratch, codes, lo, hi, m);
+      BuildTask<X,Y,V> nw = new BuildTask<>(map, a, scratch, codes, bounds[NW], bounds[NW + 1]);
+      BuildTask<X,Y,V> ne = new BuildTask<>(map, a, scratch, codes, bounds[NE], bounds[NE + 1]);
+      BuildTask<X,Y,V> sw = new BuildTask<>(map, a, scratch, codes, bounds[SW], bounds[SW + 1]);
+      BuildTask<X,Y,V> se = new BuildTask<>(map, a, scratch, codes, bounds[SE], bounds[SE + 1]);
+      invokeAll(nw, ne, sw, se);
+      t.attach(root, nw.join(), ne.join(), sw.join(), se.join());
+      return t;
+    }
+  } //----------- end of nested BuildTask class -----------
+
+  /**
+   * Copies the entries into an array sorted by x and then y, with one fresh
+   * entry per distinct key (the last one given for that key).
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  protected Entry<Coord<X,Y>,V>[] sortedEntries(Collection<? extends Entry<Coord<X,Y>,V>> entries, boolean parallel) throws IllegalArgumentException {
+    Entry<Coord<X,Y>,V>[] a = (Entry<Coord<X,Y>,V>[]) new Entry[entries.size()];
+    int n = 0;
+    for (Entry<Coord<X,Y>,V> e : entries) {
+      checkKey(e.getKey());
+      a[n++] = new MapEntry<>(e.getKey(), e.getValue());
+    }
+    // a stable sort keeps duplicate keys in their original order
+    if (parallel)
+      Arrays.parallelSort(a, 0, n, byXY());
+    else
+      Arrays.sort(a, 0, n, byXY());
+    int distinct = 0;
+    for (int i = 0; i < n; i++) {
+      if (i + 1 < n && compareXY(a[i].getKey(), a[i+1].getKey()) == 0)
+        continue;                       // a later entry has the same key
+      a[distinct++] = a[i];
+    }
+    return Arrays.copyOf(a, distinct);
+  }
+
+  /** Returns a comparator ordering entries by the x and then the y of their keys */
+  protected Comparator<Entry<Coord<X,Y>,V>> byXY() {
+    return new Comparator<Entry<Coord<X,Y>,V>>() {
+      public int compare(Entry<Coord<X,Y>,V> e1, Entry<Coord<X,Y>,V> e2) {
+        return compareXY(e1.getKey(), e2.getKey());
+      }
+    };
+  }
+
+  /** Orders keys by x, then by y */
+  private int compareXY(Coord<X,Y> a, Coord<X,Y> b) {
+    int c = compX.compare(a.getX(), b.getX());
+    return (c != 0 ? c : compY.compare(a.getY(), b.getY()));
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  protected Entry<Coord<X,Y>,V>[] newScratch(int n) {
+    return (Entry<Coord<X,Y>,V>[]) new Entry[n];
+  }
+
+  /**
+   * Stably partitions a[lo, hi), except the pivot a[m], into the four quadrants of
+   * the pivot's key. Each quadrant stays sorted by x then y.
+   * @param a        entries sorted by x then y
+   * @param scratch  an array at least as long as a
+   * @param codes    an array at least as long as a, used to remember each quadrant
+   * @return the start of the NW, NE, SW and SE runs, followed by the end of the SE run
+   */
+  protected int[] partition(Entry<Coord<X,Y>,V>[] a, Entry<Coord<X,Y>,V>[] scratch, byte[] codes, int lo, int hi, int m) {
+    Coord<X,Y> pivot = a[m].getKey();
+    int[] bounds = new int[5];
+    for (int i = lo; i < hi; i++) {
+      if (i == m) continue;
+      int q = quadrant(pivot, a[i].getKey());
+      codes[i] = (byte) q;
+      bounds[q + 1]++;
+    }
+    bounds[0] = lo;
+    for (int q = 1; q <= 4; q++)
+      bounds[q] += bounds[q - 1];
+    int[] next = Arrays.copyOf(bounds, 4);
+    for (int i = lo; i < hi; i++)
+      if (i != m)
+        scratch[next[codes[i]]++] = a[i];
+    System.arraycopy(scratch, lo, a, lo, bounds[4] - lo);
+    return bounds;
+  }
+
+  // number of entries sampled to estimate the median y of a run
+  private static final int PIVOT_SAMPLE = 255;
+  // number of entries around the median x considered as pivots
+  private static final int PIVOT_WINDOW = 64;
+
+  /**
+   * Chooses the entry of a[lo, hi) (sorted by x then y) used to split that run into
+   * quadrants. A good pivot is close to the median of both dimensions, so the entries
+   * near the median x are considered and the one whose y ranks closest to the middle
+   * of an evenly spaced sample of y values is returned.
+   */
+  protected int choosePivot(Entry<Coord<X,Y>,V>[] a, int lo, int hi) {
+    int n = hi - lo;
+    int m = lo + n / 2;
+    if (n <= 2)
+      return m;
+    // estimate the distribution of y from an evenly spaced sample of the run
+    int samples = Math.min(n, PIVOT_SAMPLE);
+    ArrayList<Y> ys = new ArrayList<>(samples);
+    for (int i = 0; i < samples; i++)
+      ys.add(a[lo + (int) ((long) i * n / samples)].getKey().getY());
+    Collections.sort(ys, compY);
+    int from = Math.max(lo, m - PIVOT_WINDOW / 2);
+    int to = Math.min(hi, m + PIVOT_WINDOW / 2);
+    int best = m;
+    int bestSkew = Integer.MAX_VALUE;
+    for (int i = from; i < to; i++) {
+      int rank = Collections.binarySearch(ys, a[i].getKey().getY(), compY);
+      if (rank < 0) rank = -rank - 1;
+      // prefer a small distance from the middle in y, then in x
+      int skew = Math.abs(2 * rank - samples) * n / samples + Math.abs(i - m);
+      if (skew < bestSkew) {
+        best = i;
+        bestSkew = skew;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Builds a balanced subtree holding the entries of a (sorted by x then y, with distinct
+   * keys) in the empty quadrant of parent that would hold key, or as the whole tree if
+   * parent is null. The entries must all belong to that quadrant.
+   * @return the root of the new subtree (or null if a is empty)
+   */
+  protected Position<Entry<Coord<X,Y>,V>> buildSubtree(Position<Entry<Coord<X,Y>,V>> parent, Coord<X,Y> key, Entry<Coord<X,Y>,V>[] a) {
+    if (a.length == 0)
+      return null;
+    int m = choosePivot(a, 0, a.length);
+    Position<Entry<Coord<X,Y>,V>> p;
+    if (parent == null)
+      p = tree.addRoot(a[m]);
+    else
+      p = addChild(parent, quadrant(parent.getElement().getKey(), key), a[m]);
+    buildBalanced(tree, p, a, newScratch(a.length), new byte[a.length], 0, a.length, m);
+    return p;
+  }
+
+  /**
+   * Builds the subtree below p from a[lo, hi), where a[m] is the entry already stored at p.
+   * Each quadrant's pivot becomes the root of that quadrant's subtree. Since pivots are
+   * close to the median of the run in both x and y, each quadrant gets roughly a quarter
+   * of its parent's entries and the height stays close to log4 of the size.
+   */
+  private void buildBalanced(AbstractQuadTree<Entry<Coord<X,Y>,V>> t, Position<Entry<Coord<X,Y>,V>> p,
+                             Entry<Coord<X,Y>,V>[] a, Entry<Coord<X,Y>,V>[] scratch, byte[] codes, int lo, int hi, int m) {
+    int[] bounds = partition(a, scratch, codes, lo, hi, m);
+    for (int q = NW; q <= SE; q++) {
+      int from = bounds[q];
+      int to = bounds[q + 1];
+      if (from < to) {
+        int mid = choosePivot(a, from, to);
+        Position<Entry<Coord<X,Y>,V>> c = addChild(t, p, q, a[mid]);
+        buildBalanced(t, c, a, scratch, codes, from, to, mid);
+      }
+    }
   }
 
   // Support for iteration
@@ -159,14 +685,14 @@ public class SpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements
   public Iterable<Entry<Coord<X,Y>,V>> entrySet() {
     ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>(size());
     for (Position<Entry<Coord<X,Y>,V>> p : tree.breadthfirst())
-      if (tree.isInternal(p)) buffer.add(p.getElement());
+      buffer.add(p.getElement());
     return buffer;
   }
 
   public Iterable<Entry<Coord<X,Y>,V>> subMapLinear(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
     checkKey(nwCorner);
     checkKey(seCorner);
-    ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>(size());
+    ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>();
     // use one of Tree's traversal methods to iterate through the elements of tree
     // for each one check whether it is within the bounding box
     // For each Position checked, call visitor.visit on it
@@ -191,69 +717,908 @@ public class SpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements
   public Iterable<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
     checkKey(nwCorner);
     checkKey(seCorner);
-    ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>(size());
-    // only call subMapRecurse on a valid bounding box
-    if (compX.compare(nwCorner.getX(), seCorner.getX()) < 0 && compY.compare(nwCorner.getY(), seCorner.getY()) > 0)
-      subMapRecurse(nwCorner, seCorner, tree.root(), buffer, visitor);
+    ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>();
+    // only call subMapSearch on a valid bounding box
+    if (isValidBox(nwCorner, seCorner) && !tree.isEmpty())
+      subMapSearch(nwCorner, seCorner, visitor, buffer::add);
     return buffer;
   }
 
-  // utility to fill subMap buffer recursively
-  private void subMapRecurse(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Position<Entry<Coord<X,Y>,V>> p,
-                             ArrayList<Entry<Coord<X,Y>,V>> buffer, Visitor<Entry<Coord<X,Y>,V>> visitor) {
-
-      if (tree.isInternal(p)) {
-          visitor.visit(p);
-          int xNW = compX.compare(p.getElement().getKey().getX(), nwCorner.getX());
-          int yNW = compY.compare(p.getElement().getKey().getY(), nwCorner.getY());
-          int xSE = compX.compare(p.getElement().getKey().getX(), seCorner.getX());
-          int ySE = compY.compare(p.getElement().getKey().getY(), seCorner.getY());
-          // Case 1 - key is west or north of the nwCorner
-          if (xNW < 0 || yNW > 0){
-                  subMapRecurse(nwCorner, seCorner, tree.ne(p), buffer, visitor);
-                  subMapRecurse(nwCorner, seCorner, tree.nw(p), buffer, visitor);
-                  subMapRecurse(nwCorner, seCorner, tree.sw(p), buffer, visitor);
-          }
-          // Case 2 - key is east or south of the nwCorner.
-          else {
-              if (xSE <= 0 && ySE >= 0) {
-                  buffer.add(p.getElement());
+  /**
+   * Returns the same list as subMap, searching the subtrees of the quadrants that
+   * intersect the box concurrently on the common fork/join pool.
+   * @return list with keys in desired range, in the order subMap gives them
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public List<Entry<Coord<X,Y>,V>> parallelSubMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) throws IllegalArgumentException {
+    return parallelSubMap(nwCorner, seCorner, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Returns the same list as subMap, using the given fork/join pool. Starting at the root,
+   * each task reports its own entry if it is in the box and forks one task per child
+   * whose quadrant intersects the box; the children's lists are appended in the order
+   * subMap visits them. Below PARALLEL_QUERY_DEPTH, a task searches its whole subtree
+   * sequentially, and a map with fewer than PARALLEL_QUERY_CUTOFF entries is searched
+   * by subMap alone, so that small queries do not pay for forking.
+   * The map must not be changed while the search runs.
+   * @param pool  the pool running the search tasks
+   * @return list with keys in desired range, in the order subMap gives them
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public List<Entry<Coord<X,Y>,V>> parallelSubMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, ForkJoinPool pool) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    if (!isValidBox(nwCorner, seCorner) || tree.isEmpty())
+      return new ArrayList<>();
+    if (size() < PARALLEL_QUERY_CUTOFF) {
+      ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>();
+      subMapSearch(nwCorner, seCorner, null, buffer::add);
+      return buffer;
+    }
+    return pool.invoke(new RangeTask(new RangeFrame(tree.root(), Region.<X,Y>unbounded()), nwCorner, seCorner, 0));
+  }
+
+  /** Maps with fewer entries than this are searched by parallelSubMap on the calling thread */
+  protected static final int PARALLEL_QUERY_CUTOFF = 16384;
+
+  /**
+   * Depth below which parallelSubMap searches each subtree in a single task. Each level
+   * forks at most four tasks, so this allows up to 4^6 = 4096 tasks, enough to keep
+   * every core busy even when the box only reaches into a few quadrants.
+   */
+  protected static final int PARALLEL_QUERY_DEPTH = 6;
+
+  //---------------- nested RangeTask class ----------------
+  /** Collects the entries of the box in the subtree of a frame */
+  @SuppressWarnings("serial")
+  private class RangeTask extends RecursiveTask<List<Entry<Coord<X,Y>,V>>> {
+    private final RangeFrame frame;
+    private final Coord<X,Y> nwCorner;
+    private final Coord<X,Y> seCorner;
+    private final int depth;
+
+    RangeTask(RangeFrame frame, Coord<X,Y> nwCorner, Coord<X,Y> seCorner, int depth) {
+      this.frame = frame;
+      this.nwCorner = nwCorner;
+      this.seCorner = seCorner;
+      this.depth = depth;
+    }
+
+    @Override
+    protected List<Entry<Coord<X,Y>,V>> compute() {
+      ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>();
+      if (depth >= PARALLEL_QUERY_DEPTH) {
+        subMapSearch(frame, nwCorner, seCorner, null, buffer::add);
+        return buffer;
+      }
+      Entry<Coord<X,Y>,V> e = frame.p.getElement();
+      if (frame.region == null || inBox(e.getKey(), nwCorner, seCorner))
+        buffer.add(e);
+      ArrayDeque<RangeFrame> children = new ArrayDeque<>();
+      pushCandidates(children, frame, nwCorner, seCorner, r -> covers(nwCorner, seCorner, r));
+      ArrayList<RangeTask> tasks = new ArrayList<>(children.size());
+      for (RangeFrame child : children)   // from the top of the stack, as subMap pops them
+        tasks.add(new RangeTask(child, nwCorner, seCorner, depth + 1));
+      invokeAll(tasks);
+      for (RangeTask t : tasks)
+        buffer.addAll(t.join());
+      return buffer;
+    }
+  } //----------- end of nested RangeTask class -----------
+
+  /**
+   * Passes each entry with a key inside the bounding box (inclusive) to the sink,
+   * stopping as soon as the sink returns false. No result collection is built.
+   * @param sink  receives the entries; returns false to end the search
+   * @return true if every entry in the box was passed to the sink, false if the sink stopped the search
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    if (isValidBox(nwCorner, seCorner) && !tree.isEmpty())
+      return subMapSearch(nwCorner, seCorner, null, sink);
+    return true;
+  }
+
+  /** Tests whether nwCorner is strictly west and north of seCorner */
+  private boolean isValidBox(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) {
+    return compX.compare(nwCorner.getX(), seCorner.getX()) < 0 && compY.compare(nwCorner.getY(), seCorner.getY()) > 0;
+  }
+
+  /** Tests whether key lies inside the box with the given corners (inclusive) */
+  private boolean inBox(Coord<X,Y> key, Coord<X,Y> nwCorner, Coord<X,Y> seCorner) {
+    return compX.compare(key.getX(), nwCorner.getX()) >= 0 && compX.compare(key.getX(), seCorner.getX()) <= 0
+        && compY.compare(key.getY(), nwCorner.getY()) <= 0 && compY.compare(key.getY(), seCorner.getY()) >= 0;
+  }
+
+  /** Tests whether every point of region r lies inside the box with the given corners */
+  private boolean covers(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Region<X,Y> r) {
+    return r.getMinX() != null && r.getMaxX() != null && r.getMinY() != null && r.getMaxY() != null
+        && compX.compare(r.getMinX(), nwCorner.getX()) >= 0 && compX.compare(r.getMaxX(), seCorner.getX()) <= 0
+        && compY.compare(r.getMaxY(), nwCorner.getY()) <= 0 && compY.compare(r.getMinY(), seCorner.getY()) >= 0;
+  }
+
+  //---------------- nested RangeFrame class ----------------
+  /**
+   * A subtree still to be explored by a range search, together with the region it
+   * covers. The region is null once the subtree is known to lie inside the query,
+   * in which case all of its entries are reported without further comparisons.
+   */
+  private class RangeFrame {
+    private final Position<Entry<Coord<X,Y>,V>> p;
+    private final Region<X,Y> region;
+
+    RangeFrame(Position<Entry<Coord<X,Y>,V>> p, Region<X,Y> region) {
+      this.p = p;
+      this.region = region;
+    }
+  } //----------- end of nested RangeFrame class -----------
+
+  // utility to pass the entries of the box to a sink (the visitor may be null), walking
+  // the tree with an explicit stack so that the depth of the tree is not limited by the
+  // depth of the call stack; returns false if the sink ended the search early
+  private boolean subMapSearch(final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner,
+                               Visitor<Entry<Coord<X,Y>,V>> visitor, Predicate<? super Entry<Coord<X,Y>,V>> sink) {
+      return subMapSearch(new RangeFrame(tree.root(), Region.<X,Y>unbounded()), nwCorner, seCorner, visitor, sink);
+  }
+
+  // same as above, for the subtree of the given frame
+  private boolean subMapSearch(RangeFrame start, final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner,
+                               Visitor<Entry<Coord<X,Y>,V>> visitor, Predicate<? super Entry<Coord<X,Y>,V>> sink) {
+      Predicate<Region<X,Y>> covered = r -> covers(nwCorner, seCorner, r);
+      ArrayDeque<RangeFrame> stack = new ArrayDeque<>();
+      stack.push(start);
+      while (!stack.isEmpty()) {
+          RangeFrame f = stack.pop();
+          if (visitor != null)
+              visitor.visit(f.p);
+          if ((f.region == null || inBox(f.p.getElement().getKey(), nwCorner, seCorner)) && !sink.test(f.p.getElement()))
+              return false;
+          pushCandidates(stack, f, nwCorner, seCorner, covered);
+      }
+      return true;
+  }
+
+  /**
+   * Pushes the children of the frame's node whose quadrants intersect the box, marking
+   * those whose whole region is covered by the box. They are pushed in reverse, so they
+   * are explored NE, NW, SE, SW.
+   */
+  private void pushCandidates(ArrayDeque<RangeFrame> stack, RangeFrame f, Coord<X,Y> nwCorner, Coord<X,Y> seCorner,
+                              Predicate<Region<X,Y>> covered) {
+      int mask = (f.region == null ? ALL_QUADRANTS : candidates(f.p, nwCorner, seCorner));
+      pushChildren(stack, f, mask, covered);
+  }
+
+  /** Mask with the bits of all four quadrants set */
+  private static final int ALL_QUADRANTS = (1 << NW) | (1 << NE) | (1 << SW) | (1 << SE);
+
+  /**
+   * Returns a bit mask (bit i for quadrant i) of the children of p whose quadrants
+   * intersect the box. By the quadrant rules, NW and SW keys have a greater x than the
+   * key at p and NE and SE keys a smaller or equal one; NW keys have a smaller y, NE
+   * keys a smaller or equal one, SW keys a greater or equal one and SE keys a greater one.
+   */
+  private int candidates(Position<Entry<Coord<X,Y>,V>> p, Coord<X,Y> nwCorner, Coord<X,Y> seCorner) {
+      return candidates(compX, compY, p.getElement().getKey(), nwCorner, seCorner);
+  }
+
+  /** Same as above for a node holding key, under the given comparators */
+  static <X,Y> int candidates(Comparator<X> compX, Comparator<Y> compY, Coord<X,Y> key, Coord<X,Y> nwCorner, Coord<X,Y> seCorner) {
+      int west = compX.compare(nwCorner.getX(), key.getX());     // box's west edge against key
+      int east = compX.compare(seCorner.getX(), key.getX());     // box's east edge against key
+      int north = compY.compare(nwCorner.getY(), key.getY());    // box's north edge against key
+      int south = compY.compare(seCorner.getY(), key.getY());    // box's south edge against key
+      int mask = 0;
+      if (east > 0 && south < 0) mask |= 1 << NW;
+      if (west <= 0 && south <= 0) mask |= 1 << NE;
+      if (east > 0 && north >= 0) mask |= 1 << SW;
+      if (west <= 0 && north > 0) mask |= 1 << SE;
+      return mask;
+  }
+
+  /** Gives the child of a node in a quadrant (or null), for trees kept outside an AbstractQuadTree */
+  interface ChildLink<N> {
+      N child(N node, int quadrant);
+  }
+
+  /**
+   * The range search shared by the point quadtree maps that keep their own nodes (the
+   * lock-free and persistent maps). Walks the quadrants below root that intersect the
+   * box with an explicit stack, exploring them NW, NE, SW, SE, and passes the entry of
+   * each node inside the box to the sink. Each node's getElement is called once, so
+   * the key tested and the entry reported always belong together.
+   * @param root     the root of the tree (may be null)
+   * @param links    gives the children of a node
+   * @param visitor  is passed every node looked at (may be null)
+   * @return true if every entry in the box was passed to the sink, false if the sink stopped the search
+   */
+  static <X,Y,V,N extends Position<Entry<Coord<X,Y>,V>>> boolean searchNodes(Comparator<X> compX, Comparator<Y> compY,
+          N root, ChildLink<N> links, Coord<X,Y> nwCorner, Coord<X,Y> seCorner,
+          Visitor<Entry<Coord<X,Y>,V>> visitor, Predicate<? super Entry<Coord<X,Y>,V>> sink) {
+      if (compX.compare(nwCorner.getX(), seCorner.getX()) >= 0 || compY.compare(nwCorner.getY(), seCorner.getY()) <= 0)
+          return true;                  // not a valid box
+      ArrayDeque<N> stack = new ArrayDeque<>();
+      if (root != null)
+          stack.push(root);
+      while (!stack.isEmpty()) {
+          N node = stack.pop();
+          if (visitor != null)
+              visitor.visit(node);
+          Entry<Coord<X,Y>,V> e = node.getElement();
+          Coord<X,Y> key = e.getKey();
+          if (compX.compare(key.getX(), nwCorner.getX()) >= 0 && compX.compare(key.getX(), seCorner.getX()) <= 0
+              && compY.compare(key.getY(), nwCorner.getY()) <= 0 && compY.compare(key.getY(), seCorner.getY()) >= 0
+              && !sink.test(e))
+              return false;
+          int mask = candidates(compX, compY, key, nwCorner, seCorner);
+          for (int q = SE; q >= NW; q--)
+              if ((mask & (1 << q)) != 0) {
+                  N c = links.child(node, q);
+                  if (c != null)
+                      stack.push(c);
               }
-              subMapRecurse(nwCorner, seCorner, tree.ne(p), buffer, visitor);
-              subMapRecurse(nwCorner, seCorner, tree.nw(p), buffer, visitor);
-              subMapRecurse(nwCorner, seCorner, tree.se(p), buffer, visitor);
-              subMapRecurse(nwCorner, seCorner, tree.sw(p), buffer, visitor);
-          }
       }
+      return true;
+  }
+
+  /**
+   * Pushes the children of the frame's node selected by mask, in reverse so they are
+   * explored NE, NW, SE, SW. A child whose region is covered is pushed without a region.
+   */
+  private void pushChildren(ArrayDeque<RangeFrame> stack, RangeFrame f, int mask, Predicate<Region<X,Y>> covered) {
+      pushChild(stack, f, mask, SW, covered);
+      pushChild(stack, f, mask, SE, covered);
+      pushChild(stack, f, mask, NW, covered);
+      pushChild(stack, f, mask, NE, covered);
+  }
+
+  private void pushChild(ArrayDeque<RangeFrame> stack, RangeFrame f, int mask, int quadrant, Predicate<Region<X,Y>> covered) {
+      if ((mask & (1 << quadrant)) == 0)
+          return;
+      Position<Entry<Coord<X,Y>,V>> c = child(f.p, quadrant);
+      if (c == null)
+          return;
+      Region<X,Y> r = null;
+      if (f.region != null) {
+          r = childRegion(f.region, quadrant, f.p.getElement().getKey());
+          if (covered.test(r))
+              r = null;
+      }
+      stack.push(new RangeFrame(c, r));
+  }
+
+  /**
+   * Passes each entry with a key inside any of the bounding boxes (inclusive) to the
+   * sink, stopping as soon as the sink returns false. The boxes share one traversal:
+   * a subtree is explored once if any box may reach into it, and an entry inside
+   * several boxes is reported once. Invalid boxes are ignored.
+   * @param nwCorners  the north-west corners of the boxes
+   * @param seCorners  the south-east corners of the boxes, in the same order
+   * @param sink       receives the entries; returns false to end the search
+   * @return true if every entry in the boxes was passed to the sink, false if the sink stopped the search
+   * @throws IllegalArgumentException if a corner is not compatible with the map, or the lists differ in length
+   */
+  @Override
+  public boolean forEachInRanges(List<Coord<X,Y>> nwCorners, List<Coord<X,Y>> seCorners,
+                                 Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    if (nwCorners.size() != seCorners.size())
+      throw new IllegalArgumentException("Each box needs two corners");
+    final List<Coord<X,Y>> nws = new ArrayList<>();
+    final List<Coord<X,Y>> ses = new ArrayList<>();
+    for (int i = 0; i < nwCorners.size(); i++) {
+      checkKey(nwCorners.get(i));
+      checkKey(seCorners.get(i));
+      if (isValidBox(nwCorners.get(i), seCorners.get(i))) {
+        nws.add(nwCorners.get(i));
+        ses.add(seCorners.get(i));
+      }
+    }
+    if (nws.isEmpty() || tree.isEmpty())
+      return true;
+    Predicate<Region<X,Y>> covered = r -> {
+      for (int i = 0; i < nws.size(); i++)
+        if (covers(nws.get(i), ses.get(i), r))
+          return true;
+      return false;
+    };
+    ArrayDeque<RangeFrame> stack = new ArrayDeque<>();
+    stack.push(new RangeFrame(tree.root(), Region.<X,Y>unbounded()));
+    while (!stack.isEmpty()) {
+        RangeFrame f = stack.pop();
+        Coord<X,Y> key = f.p.getElement().getKey();
+        boolean hit = (f.region == null);
+        int mask = (f.region == null ? ALL_QUADRANTS : 0);
+        for (int i = 0; i < nws.size() && mask != ALL_QUADRANTS; i++)
+            mask |= candidates(f.p, nws.get(i), ses.get(i));
+        for (int i = 0; i < nws.size() && !hit; i++)
+            hit = inBox(key, nws.get(i), ses.get(i));
+        if (hit && !sink.test(f.p.getElement()))
+            return false;
+        pushChildren(stack, f, mask, covered);
+    }
+    return true;
+  }
+
+  /**
+   * Registers an aggregator, so that the summary of every subtree is kept up to date
+   * as the map changes and aggregate can answer queries with it. Registering computes
+   * the summaries of the existing entries in one pass; afterwards each put or remove
+   * updates the summaries on the path from the changed node to the root.
+   * @param agg  the aggregator (registering it again has no effect)
+   */
+  public void addAggregator(Aggregator<? super V,?> agg) {
+    if (aggregators.contains(agg))
+      return;
+    aggregators.add(agg);
+    if (!tree.isEmpty()) {
+      for (Position<Entry<Coord<X,Y>,V>> p : tree.breadthfirst())
+        if (!(p.getElement() instanceof SummaryEntry))
+          tree.set(p, new SummaryEntry<>(p.getElement().getKey(), p.getElement().getValue()));
+      refreshSubtree(tree.root());
+    }
+  }
+
+  /**
+   * Combines the values of the entries with keys inside the bounding box, inclusive.
+   * A subtree whose region lies inside the box contributes its stored summary, so only
+   * the nodes near the boundary of the box are looked at one by one.
+   * @param agg  a registered aggregator
+   * @return the summary of the values in the box (the identity if there are none)
+   * @throws IllegalArgumentException if agg is not registered, or a corner is not compatible with the map
+   */
+  @SuppressWarnings({"unchecked"})
+  public <A> A aggregate(Aggregator<? super V,A> agg, final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    int i = aggregators.indexOf(agg);
+    if (i < 0)
+      throw new IllegalArgumentException("Aggregator is not registered");
+    A answer = agg.identity();
+    if (!isValidBox(nwCorner, seCorner) || tree.isEmpty())
+      return answer;
+    Predicate<Region<X,Y>> covered = r -> covers(nwCorner, seCorner, r);
+    ArrayDeque<RangeFrame> stack = new ArrayDeque<>();
+    stack.push(new RangeFrame(tree.root(), Region.<X,Y>unbounded()));
+    while (!stack.isEmpty()) {
+      RangeFrame f = stack.pop();
+      SummaryEntry<Coord<X,Y>,V> e = (SummaryEntry<Coord<X,Y>,V>) f.p.getElement();
+      if (f.region == null)
+        answer = agg.combine(answer, (A) e.summaries[i]);
+      else {
+        if (inBox(e.getKey(), nwCorner, seCorner))
+          answer = agg.combine(answer, agg.lift(e.getValue()));
+        pushCandidates(stack, f, nwCorner, seCorner, covered);
+      }
+    }
+    return answer;
+  }
+
+  /**
+   * Keeps the number of entries of every subtree up to date from now on, so that
+   * countInRange can add the size of each subtree that lies inside the box at once.
+   * Like addAggregator, this is an update of the map: it sizes every subtree in one
+   * pass, and afterwards each put or remove also updates the sizes on its path.
+   * Calling it again has no effect.
+   */
+  public void trackSubtreeSizes() {
+    addAggregator(subtreeSizes);
+  }
+
+  /**
+   * Tests whether subtree sizes are kept for countInRange.
+   * @return true if trackSubtreeSizes has been called, false otherwise
+   */
+  public boolean tracksSubtreeSizes() {
+    return aggregators.contains(subtreeSizes);
+  }
+
+  /**
+   * Returns the number of entries with a key inside the bounding box, inclusive, without
+   * collecting them. If subtree sizes are tracked, each subtree whose region lies inside
+   * the box adds its size at once; otherwise the entries are counted one at a time.
+   * Either way, the map is left unchanged.
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public int countInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) throws IllegalArgumentException {
+    if (tracksSubtreeSizes())
+      return aggregate(subtreeSizes, nwCorner, seCorner);
+    final int[] count = new int[1];
+    forEachInRange(nwCorner, seCorner, e -> { count[0]++; return true; });
+    return count[0];
+  }
+
+  //---------------- nested Ranking class ----------------
+  /** An order on values registered with addRanking, to be passed to topK */
+  public static class Ranking<V> {
+    private final Comparator<? super V> order;
+    private final Aggregator<V,V> greatest;      // keeps the greatest value of each subtree
+
+    private Ranking(Comparator<? super V> order) {
+      this.order = order;
+      this.greatest = Aggregator.greatest(order);
+    }
+
+    /** Returns the order on values */
+    public Comparator<? super V> getOrder() { return order; }
+  } //----------- end of nested Ranking class -----------
+
+  /**
+   * Registers an order on values for topK: the greatest value of each subtree under it
+   * is kept up to date, like the summary of an aggregator. Registering computes these
+   * for the existing entries in one pass.
+   * @param order  the order on values
+   * @return the handle to pass to topK (the same one if this order is already registered)
+   */
+  public Ranking<V> addRanking(Comparator<? super V> order) {
+    for (Ranking<V> r : rankings)
+      if (r.order == order)
+        return r;
+    Ranking<V> r = new Ranking<>(order);
+    rankings.add(r);
+    addAggregator(r.greatest);
+    return r;
+  }
+
+  /**
+   * Returns the k entries inside the bounding box (inclusive) with the greatest values
+   * under the given order, greatest first. Fewer are returned if the box holds fewer.
+   * Every entry in the box is looked at, and the k greatest are kept in a bounded heap;
+   * register the order with addRanking to search only the subtrees that can hold them.
+   * @param k      the number of entries wanted
+   * @param order  the order on values
+   * @return list of at most k entries, greatest first
+   * @throws IllegalArgumentException if k is negative, or a corner is not compatible with the map
+   */
+  public List<Entry<Coord<X,Y>,V>> topK(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, int k,
+                                        Comparator<? super V> order) throws IllegalArgumentException {
+    return topK(nwCorner, seCorner, k, order, null);
+  }
+
+  /**
+   * Same as topK(nwCorner, seCorner, k, order), passing every node looked at to the visitor.
+   */
+  public List<Entry<Coord<X,Y>,V>> topK(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, int k,
+                                        final Comparator<? super V> order,
+                                        Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    if (k < 0) throw new IllegalArgumentException("k must not be negative");
+    ArrayList<Entry<Coord<X,Y>,V>> answer = new ArrayList<>();
+    if (k == 0 || !isValidBox(nwCorner, seCorner) || tree.isEmpty())
+      return answer;
+    // the least of the k greatest entries so far on top
+    final PriorityQueue<Entry<Coord<X,Y>,V>> best =
+        new PriorityQueue<>(k, (a, b) -> order.compare(a.getValue(), b.getValue()));
+    subMapSearch(nwCorner, seCorner, visitor, e -> {
+      if (best.size() < k)
+        best.add(e);
+      else if (order.compare(e.getValue(), best.peek().getValue()) > 0) {
+        best.poll();
+        best.add(e);
+      }
+      return true;
+    });
+    while (!best.isEmpty())
+      answer.add(best.poll());
+    Collections.reverse(answer);        // the heap yields the least entry first
+    return answer;
+  }
+
+  /**
+   * Returns the k entries inside the bounding box (inclusive) with the greatest values
+   * under a registered order, greatest first. Fewer are returned if the box holds fewer.
+   * The search is best first: it always expands the subtree with the greatest possible
+   * value, and stops once k entries are known to beat everything left.
+   * @param k        the number of entries wanted
+   * @param ranking  the handle addRanking returned for the order
+   * @return list of at most k entries, greatest first
+   * @throws IllegalArgumentException if the ranking is not registered with this map, k is negative,
+   *         or a corner is not compatible with the map
+   */
+  public List<Entry<Coord<X,Y>,V>> topK(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, int k,
+                                        Ranking<V> ranking) throws IllegalArgumentException {
+    return topK(nwCorner, seCorner, k, ranking, null);
+  }
+
+  /**
+   * Same as topK(nwCorner, seCorner, k, ranking), passing every node looked at to the visitor.
+   */
+  @SuppressWarnings({"unchecked"})
+  public List<Entry<Coord<X,Y>,V>> topK(final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner, int k,
+                                        Ranking<V> ranking,
+                                        Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    if (!rankings.contains(ranking))
+      throw new IllegalArgumentException("Ranking is not registered");
+    if (k < 0) throw new IllegalArgumentException("k must not be negative");
+    List<Entry<Coord<X,Y>,V>> answer = new ArrayList<>();
+    if (k == 0 || !isValidBox(nwCorner, seCorner) || tree.isEmpty())
+      return answer;
+    final Comparator<? super V> order = ranking.order;
+    final int i = aggregators.indexOf(ranking.greatest);
+    Predicate<Region<X,Y>> covered = reg -> covers(nwCorner, seCorner, reg);
+    // frames bounded by the greatest value of their subtree, and single entries
+    // already known to be in the box; whatever is greatest comes out first
+    PriorityQueue<Ranked> frontier = new PriorityQueue<>(16, (a, b) -> order.compare(b.bound, a.bound));
+    frontier.add(new Ranked(new RangeFrame(tree.root(), Region.<X,Y>unbounded()), null,
+                            (V) ((SummaryEntry<Coord<X,Y>,V>) tree.root().getElement()).summaries[i]));
+    ArrayDeque<RangeFrame> children = new ArrayDeque<>();
+    while (!frontier.isEmpty() && answer.size() < k) {
+      Ranked c = frontier.poll();
+      if (c.frame == null) {
+        answer.add(c.entry);            // no entry left can be greater
+        continue;
+      }
+      RangeFrame f = c.frame;
+      if (visitor != null)
+        visitor.visit(f.p);
+      Entry<Coord<X,Y>,V> e = f.p.getElement();
+      if (f.region == null || inBox(e.getKey(), nwCorner, seCorner))
+        frontier.add(new Ranked(null, e, e.getValue()));
+      pushCandidates(children, f, nwCorner, seCorner, covered);
+      while (!children.isEmpty()) {
+        RangeFrame child = children.pop();
+        frontier.add(new Ranked(child, null, (V) ((SummaryEntry<Coord<X,Y>,V>) child.p.getElement()).summaries[i]));
+      }
+    }
+    return answer;
+  }
+
+  //---------------- nested Ranked class ----------------
+  /** A subtree still to be searched by topK, or an entry in the box, with the greatest value it can offer. */
+  private class Ranked {
+    private final RangeFrame frame;                 // null for a single entry
+    private final Entry<Coord<X,Y>,V> entry;
+    private final V bound;
+
+    Ranked(RangeFrame frame, Entry<Coord<X,Y>,V> entry, V bound) {
+      this.frame = frame;
+      this.entry = entry;
+      this.bound = bound;
+    }
+  } //----------- end of nested Ranked class -----------
+
+  /**
+   * Indexes a numeric attribute of the values: the least and greatest attribute of each
+   * subtree are kept up to date, so that filtered range searches on the attribute can
+   * skip subtrees whose attributes all fall outside the filter. Filters must refer to
+   * the same ToDoubleFunction instance to use the index.
+   * @param attribute  the attribute (indexing it again has no effect)
+   */
+  public void indexAttribute(ToDoubleFunction<? super V> attribute) {
+    if (indexedAttributes.contains(attribute))
+      return;
+    indexedAttributes.add(attribute);
+    attributeMins.add(Aggregator.min(attribute));
+    attributeMaxs.add(Aggregator.max(attribute));
+    addAggregator(attributeMins.get(attributeMins.size() - 1));
+    addAggregator(attributeMaxs.get(attributeMaxs.size() - 1));
+  }
+
+  /**
+   * Returns the entries with keys inside the bounding box (inclusive) whose values pass
+   * every filter. Filters on indexed attributes also prune whole subtrees.
+   * @param filters  conditions on attributes of the values
+   * @param visitor  is passed every node looked at (may be null)
+   * @return list of the matching entries
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public List<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, List<AttributeFilter<? super V>> filters,
+                                          Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    ArrayList<Entry<Coord<X,Y>,V>> buffer = new ArrayList<>();
+    forEachInRange(nwCorner, seCorner, filters, visitor, buffer::add);
+    return buffer;
+  }
+
+  /**
+   * Passes each entry with a key inside the bounding box (inclusive) whose value passes
+   * every filter to the sink, stopping as soon as the sink returns false. A subtree is
+   * skipped when the range of an indexed attribute within it misses a filter.
+   * @param filters  conditions on attributes of the values
+   * @param sink     receives the entries; returns false to end the search
+   * @return true if every matching entry was passed to the sink, false if the sink stopped the search
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, List<AttributeFilter<? super V>> filters,
+                                Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    return forEachInRange(nwCorner, seCorner, filters, null, sink);
+  }
+
+  // utility shared by the filtered range searches (the visitor may be null)
+  @SuppressWarnings({"unchecked"})
+  private boolean forEachInRange(final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner, List<AttributeFilter<? super V>> filters,
+                                 Visitor<Entry<Coord<X,Y>,V>> visitor, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    if (!isValidBox(nwCorner, seCorner) || tree.isEmpty())
+      return true;
+    // find where the summaries of the indexed attributes are kept
+    int[] mins = new int[filters.size()];
+    int[] maxs = new int[filters.size()];
+    for (int j = 0; j < filters.size(); j++) {
+      int a = indexedAttributes.indexOf(filters.get(j).getAttribute());
+      mins[j] = (a < 0 ? -1 : aggregators.indexOf(attributeMins.get(a)));
+      maxs[j] = (a < 0 ? -1 : aggregators.indexOf(attributeMaxs.get(a)));
+    }
+    Predicate<Region<X,Y>> covered = r -> covers(nwCorner, seCorner, r);
+    ArrayDeque<RangeFrame> stack = new ArrayDeque<>();
+    stack.push(new RangeFrame(tree.root(), Region.<X,Y>unbounded()));
+    search:
+    while (!stack.isEmpty()) {
+      RangeFrame f = stack.pop();
+      Entry<Coord<X,Y>,V> e = f.p.getElement();
+      for (int j = 0; j < filters.size(); j++)
+        if (mins[j] >= 0) {
+          Object[] summaries = ((SummaryEntry<Coord<X,Y>,V>) e).summaries;
+          if (!filters.get(j).overlaps((Double) summaries[mins[j]], (Double) summaries[maxs[j]]))
+            continue search;            // no value in this subtree can pass
+        }
+      if (visitor != null)
+        visitor.visit(f.p);
+      if (f.region == null || inBox(e.getKey(), nwCorner, seCorner)) {
+        boolean pass = true;
+        for (int j = 0; j < filters.size() && pass; j++)
+          pass = filters.get(j).test(e.getValue());
+        if (pass && !sink.test(e))
+          return false;
+      }
+      pushCandidates(stack, f, nwCorner, seCorner, covered);
+    }
+    return true;
+  }
+
+  /** Recomputes the summaries of p from its value and the summaries of its children */
+  @SuppressWarnings({"unchecked"})
+  private void refresh(Position<Entry<Coord<X,Y>,V>> p) {
+    SummaryEntry<Coord<X,Y>,V> e = (SummaryEntry<Coord<X,Y>,V>) p.getElement();
+    if (e.summaries == null || e.summaries.length != aggregators.size())
+      e.summaries = new Object[aggregators.size()];
+    for (int i = 0; i < aggregators.size(); i++) {
+      Aggregator<V,Object> agg = (Aggregator<V,Object>) aggregators.get(i);
+      Object s = agg.lift(e.getValue());
+      for (Position<Entry<Coord<X,Y>,V>> c : tree.children(p))
+        s = agg.combine(s, ((SummaryEntry<Coord<X,Y>,V>) c.getElement()).summaries[i]);
+      e.summaries[i] = s;
+    }
   }
 
+  /** Recomputes the summaries of p and of its ancestors, after a change at p */
+  private void refreshPath(Position<Entry<Coord<X,Y>,V>> p) {
+    if (aggregators.isEmpty())
+      return;
+    for (; p != null; p = tree.parent(p))
+      refresh(p);
+  }
+
+  /** Recomputes the summaries of every node in the subtree rooted at p, children first */
+  private void refreshSubtree(Position<Entry<Coord<X,Y>,V>> p) {
+    if (aggregators.isEmpty())
+      return;
+    ArrayList<Position<Entry<Coord<X,Y>,V>>> nodes = new ArrayList<>();
+    nodes.add(p);
+    for (int i = 0; i < nodes.size(); i++)
+      for (Position<Entry<Coord<X,Y>,V>> c : tree.children(nodes.get(i)))
+        nodes.add(c);
+    for (int i = nodes.size() - 1; i >= 0; i--)
+      refresh(nodes.get(i));
+  }
+
+  /**
+   * Returns an iterable over the entries with keys inside the bounding box, inclusive.
+   * Unlike subMap, nothing is collected in advance: each iterator walks the tree on
+   * demand, keeping only a stack of the subtrees still to be explored, so a caller
+   * that stops early does no further work. The map must not be modified while an
+   * iteration is in progress.
+   * @return iterable with keys in desired range
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  public Iterable<Entry<Coord<X,Y>,V>> lazySubMap(final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner) throws IllegalArgumentException {
+    checkKey(nwCorner);
+    checkKey(seCorner);
+    return new Iterable<Entry<Coord<X,Y>,V>>() {
+      public Iterator<Entry<Coord<X,Y>,V>> iterator() { return new RangeIterator(nwCorner, seCorner); }
+    };
+  }
+
+  //---------------- nested RangeIterator class ----------------
+  /** Iterates over the entries of a bounding box, walking the tree on demand. */
+  private class RangeIterator implements Iterator<Entry<Coord<X,Y>,V>> {
+    private final Coord<X,Y> nwCorner;
+    private final Coord<X,Y> seCorner;
+    private final Predicate<Region<X,Y>> covered;
+    private final ArrayDeque<RangeFrame> stack = new ArrayDeque<>();
+    private Entry<Coord<X,Y>,V> nextEntry;    // the next entry to report (or null if done)
+
+    RangeIterator(final Coord<X,Y> nwCorner, final Coord<X,Y> seCorner) {
+      this.nwCorner = nwCorner;
+      this.seCorner = seCorner;
+      this.covered = r -> covers(nwCorner, seCorner, r);
+      if (isValidBox(nwCorner, seCorner) && !tree.isEmpty())
+        stack.push(new RangeFrame(tree.root(), Region.<X,Y>unbounded()));
+      advance();
+    }
+
+    /** Walks the tree until the next entry inside the box is found */
+    private void advance() {
+      nextEntry = null;
+      while (nextEntry == null && !stack.isEmpty()) {
+        RangeFrame f = stack.pop();
+        if (f.region == null || inBox(f.p.getElement().getKey(), nwCorner, seCorner))
+          nextEntry = f.p.getElement();
+        pushCandidates(stack, f, nwCorner, seCorner, covered);
+      }
+    }
+
+    public boolean hasNext() { return nextEntry != null; }
+
+    public Entry<Coord<X,Y>,V> next() {
+      if (nextEntry == null) throw new NoSuchElementException("No more entries in range");
+      Entry<Coord<X,Y>,V> answer = nextEntry;
+      advance();
+      return answer;
+    }
+
+    public void remove() { throw new UnsupportedOperationException("remove not supported"); }
+  } //----------- end of nested RangeIterator class -----------
+
+
+  /** Returns the region of the given quadrant of a node holding key, whose own region is r */
+  protected static <X,Y> Region<X,Y> childRegion(Region<X,Y> r, int quadrant, Coord<X,Y> key) {
+    switch (quadrant) {
+      case NW: return r.nw(key);
+      case NE: return r.ne(key);
+      case SW: return r.sw(key);
+      default: return r.se(key);
+    }
+  }
+
+  //---------- support for nearest neighbor searches ----------
+
+  /** A subtree waiting to be explored, with a lower bound on its distance to the query */
+  private static class Candidate<E,X,Y> {
+    final Position<E> p;
+    final Region<X,Y> region;
+    final double bound;
+    Candidate(Position<E> p, Region<X,Y> region, double bound) {
+      this.p = p;
+      this.region = region;
+      this.bound = bound;
+    }
+  }
+
+  /** An entry found by a nearest neighbor search, with its distance to the query */
+  private static class Neighbor<E> {
+    final E entry;
+    final double distance;
+    Neighbor(E entry, double distance) {
+      this.entry = entry;
+      this.distance = distance;
+    }
+  }
+
+  /**
+   * Returns the k entries whose keys are closest to q under the given metric,
+   * nearest first (fewer if the map holds fewer than k entries).
+   * @throws IllegalArgumentException if <code>q</code> is not compatible with the map or k is negative
+   */
+  public List<Entry<Coord<X,Y>,V>> nearest(Coord<X,Y> q, int k, DistanceFunction<X,Y> metric) throws IllegalArgumentException {
+    return nearest(q, k, metric, null);
+  }
+
+  /**
+   * Returns the k entries whose keys are closest to q under the given metric,
+   * nearest first (fewer if the map holds fewer than k entries).
+   *
+   * The search is best-first: subtrees are explored in order of the lower bound the
+   * metric gives for their region, and it ends as soon as the closest unexplored
+   * subtree cannot beat the k-th best entry found so far. The k best entries are
+   * kept in a bounded max-heap.
+   * @param visitor  called on each position explored (may be null)
+   * @throws IllegalArgumentException if <code>q</code> is not compatible with the map or k is negative
+   */
+  public List<Entry<Coord<X,Y>,V>> nearest(Coord<X,Y> q, int k, DistanceFunction<X,Y> metric,
+                                           Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    checkKey(q);
+    if (k < 0) throw new IllegalArgumentException("k must not be negative");
+    PriorityQueue<Neighbor<Entry<Coord<X,Y>,V>>> best =           // farthest of the k best on top
+        new PriorityQueue<>(Math.max(1, k), (a, b) -> Double.compare(b.distance, a.distance));
+    PriorityQueue<Candidate<Entry<Coord<X,Y>,V>,X,Y>> frontier =   // closest subtree on top
+        new PriorityQueue<>(16, (a, b) -> Double.compare(a.bound, b.bound));
+    if (k > 0 && !tree.isEmpty())
+      frontier.add(new Candidate<>(tree.root(), Region.<X,Y>unbounded(), 0));
+    while (!frontier.isEmpty()) {
+      Candidate<Entry<Coord<X,Y>,V>,X,Y> c = frontier.poll();
+      if (best.size() == k && c.bound >= best.peek().distance)
+        break;                          // nothing left can beat the current k-th entry
+      if (visitor != null)
+        visitor.visit(c.p);
+      Entry<Coord<X,Y>,V> e = c.p.getElement();
+      double d = metric.distance(q, e.getKey());
+      if (best.size() < k)
+        best.add(new Neighbor<>(e, d));
+      else if (d < best.peek().distance) {
+        best.poll();
+        best.add(new Neighbor<>(e, d));
+      }
+      for (int quad = NW; quad <= SE; quad++) {
+        Position<Entry<Coord<X,Y>,V>> child = child(c.p, quad);
+        if (child != null) {
+          Region<X,Y> r = childRegion(c.region, quad, e.getKey());
+          double bound = metric.minDistance(q, r);
+          if (best.size() < k || bound < best.peek().distance)
+            frontier.add(new Candidate<>(child, r, bound));
+        }
+      }
+    }
+    ArrayList<Entry<Coord<X,Y>,V>> answer = new ArrayList<>(best.size());
+    while (!best.isEmpty())
+      answer.add(best.poll().entry);
+    Collections.reverse(answer);        // the heap yields the farthest entry first
+    return answer;
+  }
 
   // remainder of class is for debug purposes only
   /** Prints textual representation of tree structure (for debug purpose only). */
   //protected void dump() {
     public void dump() {
-    dumpRecurse(tree.root(), 0, "ROOT");
+    if (tree.isEmpty())
+      System.out.println("<leaf-ROOT/>");
+    else
+      dumpTree(tree.root());
+  }
+
+  /** A pending line of the dump: the opening (or closing) tag of p */
+  private static class DumpFrame<E> {
+    final Position<E> p;
+    final int depth;
+    final String from;
+    final boolean closing;
+    DumpFrame(Position<E> p, int depth, String from, boolean closing) {
+      this.p = p;
+      this.depth = depth;
+      this.from = from;
+      this.closing = closing;
+    }
   }
 
   /** This exists for debugging only */
   // use a XML tree viewer like https://jsonformatter.org/xml-viewer to see the nesting
-  private void dumpRecurse(Position<Entry<Coord<X,Y>,V>> p, int depth, String from) {
-    String indent = (depth == 0 ? "" : String.format("%" + (2*depth) + "s", ""));
-    if (tree.isExternal(p))
-      System.out.println(indent + "<leaf-"+from+"/>");
-    else {
-      System.out.println(indent + "<"+p.getElement().getKey()+"-"+from+">");
-      dumpRecurse(tree.nw(p), depth+1, "NW");
-      dumpRecurse(tree.ne(p), depth+1, "NE");
-      dumpRecurse(tree.sw(p), depth+1,"SW");
-      dumpRecurse(tree.se(p), depth+1, "SE");
-      System.out.println(indent + "</"+p.getElement().getKey()+"-"+from+">");
+  private void dumpTree(Position<Entry<Coord<X,Y>,V>> root) {
+    ArrayDeque<DumpFrame<Entry<Coord<X,Y>,V>>> stack = new ArrayDeque<>();
+    stack.push(new DumpFrame<>(root, 0, "ROOT", false));
+    while (!stack.isEmpty()) {
+      DumpFrame<Entry<Coord<X,Y>,V>> f = stack.pop();
+      Position<Entry<Coord<X,Y>,V>> p = f.p;
+      String indent = (f.depth == 0 ? "" : String.format("%" + (2*f.depth) + "s", ""));
+      if (p == null)
+        System.out.println(indent + "<leaf-"+f.from+"/>");
+      else if (f.closing)
+        System.out.println(indent + "</"+p.getElement().getKey()+"-"+f.from+">");
+      else {
+        System.out.println(indent + "<"+p.getElement().getKey()+"-"+f.from+">");
+        // pushed in reverse so they are printed NW, NE, SW, SE, then the closing tag
+        stack.push(new DumpFrame<>(p, f.depth, f.from, true));
+        stack.push(new DumpFrame<>(tree.se(p), f.depth+1, "SE", false));
+        stack.push(new DumpFrame<>(tree.sw(p), f.depth+1, "SW", false));
+        stack.push(new DumpFrame<>(tree.ne(p), f.depth+1, "NE", false));
+        stack.push(new DumpFrame<>(tree.nw(p), f.depth+1, "NW", false));
+      }
     }
   }
 
   // for debugging - ought to be protected but we want to use it in our apps
+  // the height counts the level of empty quadrants below the deepest entry,
+  // so an empty map has height 0 and a single entry has height 1
   /*protected*/ public int treeHeight() {
-    return tree.height(tree.root());
+    if (tree.isEmpty())
+      return 0;
+    return tree.height(tree.root()) + 1;
   }
 
 }
@@ -0,0 +1,209 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.datastructures;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * A spatial map that keeps multiple versions of its contents, so that long reads
+ * never see a half-applied stream of writes and never hold writers up.
+ *
+ * The contents are a PersistentSpatialTreeMap. Each write builds the next version by
+ * copying the path to its key, stamps it with the next epoch, and installs it with a
+ * compare-and-set, trying again if another write got in first. A reader calls
+ * openView to get a ReadView of the version current at that moment, which it may scan
+ * for as long as it likes while writes go on. Nothing but the views refers to old
+ * versions, so those no longer viewed are reclaimed by the garbage collector.
+ *
+ * Reads made directly on the map (get, subMap, ...) each see the version current when
+ * they start.
+ */
+public class VersionedSpatialTreeMap<X,Y,V> extends AbstractMap<Coord<X,Y>,V> implements Sorted2DMap<X,Y,V> {
+
+  //---------------- nested ReadView class ----------------
+  /** A read-only view of the map as it was at one epoch */
+  public static class ReadView<X,Y,V> {
+    private final PersistentSpatialTreeMap<X,Y,V> contents;
+    private final long epoch;
+
+    ReadView(PersistentSpatialTreeMap<X,Y,V> contents, long epoch) {
+      this.contents = contents;
+      this.epoch = epoch;
+    }
+
+    /** Returns the epoch of the last write this view includes */
+    public long getEpoch() { return epoch; }
+
+    /** Returns the number of entries in the view */
+    public int size() { return contents.size(); }
+
+    /** Tests whether the view is empty */
+    public boolean isEmpty() { return contents.isEmpty(); }
+
+    /** Returns the value associated with the key in this view, or null if there is none */
+    public V get(Coord<X,Y> key) throws IllegalArgumentException { return contents.get(key); }
+
+    /** Returns all entries of the view */
+    public Iterable<Entry<Coord<X,Y>,V>> entrySet() { return contents.entrySet(); }
+
+    /** Returns the entries of the view with keys inside the bounding box, inclusive */
+    public List<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner) throws IllegalArgumentException {
+      return contents.subMap(nwCorner, seCorner);
+    }
+
+    /**
+     * Passes each entry of the view with a key inside the bounding box (inclusive) to
+     * the sink, stopping as soon as the sink returns false.
+     * @return true if every entry in the box was passed to the sink, false if the sink stopped the search
+     */
+    public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+      return contents.forEachInRange(nwCorner, seCorner, sink);
+    }
+  } //----------- end of nested ReadView class -----------
+
+  /** The current version; a ReadView doubles as the record of a version and its epoch */
+  private final AtomicReference<ReadView<X,Y,V>> current;
+
+  /** Constructs an empty map, at epoch 0, using the natural ordering of keys */
+  public VersionedSpatialTreeMap() {
+    this(new DefaultComparator<X>(), new DefaultComparator<Y>());
+  }
+
+  /** Constructs an empty map, at epoch 0, using the given comparators to order keys */
+  public VersionedSpatialTreeMap(Comparator<X> cx, Comparator<Y> cy) {
+    current = new AtomicReference<>(new ReadView<>(new PersistentSpatialTreeMap<X,Y,V>(cx, cy), 0));
+  }
+
+  /**
+   * Returns a view of the map as of now. Later writes do not change it.
+   * @return a view of the current version
+   */
+  public ReadView<X,Y,V> openView() {
+    return current.get();
+  }
+
+  /**
+   * Returns the epoch of the current version: the number of writes that changed the map.
+   * @return the current epoch
+   */
+  public long getEpoch() {
+    return current.get().getEpoch();
+  }
+
+  // utility installing update(v) over the current version v as the next epoch, retrying
+  // while other writes get in first; returns the version it replaced
+  private ReadView<X,Y,V> write(UnaryOperator<PersistentSpatialTreeMap<X,Y,V>> update) {
+    while (true) {
+      ReadView<X,Y,V> before = current.get();
+      PersistentSpatialTreeMap<X,Y,V> after = update.apply(before.contents);
+      if (after == before.contents)
+        return before;                  // nothing changed, so no new epoch
+      if (current.compareAndSet(before, new ReadView<>(after, before.epoch + 1)))
+        return before;
+    }
+  }
+
+  /**
+   * Returns the number of entries in the current version.
+   * @return number of entries in the map
+   */
+  @Override
+  public int size() {
+    return current.get().size();
+  }
+
+  /**
+   * Returns the value associated with the specified key in the current version, or
+   * null if no such entry exists.
+   * @param key  the key whose associated value is to be returned
+   * @return the associated value, or null if no such entry exists
+   */
+  @Override
+  public V get(Coord<X,Y> key) throws IllegalArgumentException {
+    return current.get().get(key);
+  }
+
+  /**
+   * Associates the given value with the given key in a new version.
+   * @param key    key with which the specified value is to be associated
+   * @param value  value to be associated with the specified key
+   * @return the previous value associated with the key (or null, if no such entry)
+   */
+  @Override
+  public V put(Coord<X,Y> key, V value) throws IllegalArgumentException {
+    return write(m -> m.put(key, value)).get(key);
+  }
+
+  /**
+   * Removes the entry with the specified key, if present, in a new version.
+   * @param key  the key whose entry is to be removed from the map
+   * @return the previous value associated with the removed key, or null if no such entry exists
+   */
+  @Override
+  public V remove(Coord<X,Y> key) throws IllegalArgumentException {
+    return write(m -> m.remove(key)).get(key);
+  }
+
+  /**
+   * Returns all entries of the current version.
+   * @return iterable collection of the map's entries
+   */
+  @Override
+  public Iterable<Entry<Coord<X,Y>,V>> entrySet() {
+    return current.get().entrySet();
+  }
+
+  /**
+   * Returns the entries of the current version with keys inside the bounding box, inclusive.
+   * @param visitor  called on each position explored (may be null)
+   * @return iterable with keys in desired range
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public Iterable<Entry<Coord<X,Y>,V>> subMap(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Visitor<Entry<Coord<X,Y>,V>> visitor) throws IllegalArgumentException {
+    return current.get().contents.subMap(nwCorner, seCorner, visitor);
+  }
+
+  /**
+   * Passes each entry of the current version with a key inside the bounding box
+   * (inclusive) to the sink, stopping as soon as the sink returns false.
+   * @return true if every entry in the box was passed to the sink, false if the sink stopped the search
+   * @throws IllegalArgumentException if <code>nwCorner</code> or <code>seCorner</code> is not compatible with the map
+   */
+  @Override
+  public boolean forEachInRange(Coord<X,Y> nwCorner, Coord<X,Y> seCorner, Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    return current.get().forEachInRange(nwCorner, seCorner, sink);
+  }
+
+  /**
+   * Passes each entry with a key inside any of the boxes to the sink. All boxes are
+   * searched in the same version.
+   */
+  @Override
+  public boolean forEachInRanges(List<Coord<X,Y>> nwCorners, List<Coord<X,Y>> seCorners,
+                                 Predicate<? super Entry<Coord<X,Y>,V>> sink) throws IllegalArgumentException {
+    ReadView<X,Y,V> view = current.get();
+    if (nwCorners.size() != seCorners.size())
+      throw new IllegalArgumentException("Each box needs two corners");
+    for (int i = 0; i < nwCorners.size(); i++)
+      if (!view.forEachInRange(nwCorners.get(i), seCorners.get(i), sink))
+        return false;
+    return true;
+  }
+}
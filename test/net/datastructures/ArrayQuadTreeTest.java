@@ -0,0 +1,127 @@
+package net.datastructures;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ArrayQuadTreeTest {
+
+    @Test
+    public void addNWTest() {
+        ArrayQuadTree<String> qt = new ArrayQuadTree<>();
+        Position<String> r = qt.addRoot("A");
+        qt.addNW(r, "B");
+        assertEquals("A", qt.root().getElement());
+        assertEquals("B", qt.nw(qt.root()).getElement());
+
+        qt.addNW(qt.nw(qt.root()), "C");
+        assertEquals("A", qt.root().getElement());
+        assertEquals("B", qt.nw(qt.root()).getElement());
+        assertEquals("C", qt.nw(qt.nw(qt.root())).getElement());
+    }
+
+    @Test
+    public void setTest() {
+        ArrayQuadTree<String> qt = new ArrayQuadTree<>();
+        Position<String> r = qt.addRoot("ROOT");
+        qt.addNW(r,"NW 1");
+        qt.addNW(qt.nw(qt.root()),"NW 2");
+        assertEquals("NW 2", qt.nw(qt.nw(qt.root())).getElement());
+        // set
+        assertEquals("ROOT", qt.set(r, "New Root"));
+        assertEquals("New Root", qt.root().getElement());
+        qt.set(qt.nw(qt.root()),"New NW 1");
+        assertEquals("New NW 1", qt.nw(qt.root()).getElement());
+    }
+
+    @Test
+    public void everythingTest() {
+        // Tree from Example 2
+        ArrayQuadTree<String> qt = new ArrayQuadTree<>();
+        Position<String> r = qt.addRoot("0,0");
+        qt.addNW(r,"-3,4");
+        qt.addNE(r,"3,2");
+        qt.addSW(r,"-5,-6");
+        qt.addSE(r,"6,-5");
+        assertEquals("0,0", qt.root().getElement());
+        assertEquals("-3,4", qt.nw(qt.root()).getElement());
+        assertEquals("3,2", qt.ne(qt.root()).getElement());
+        assertEquals("-5,-6", qt.sw(qt.root()).getElement());
+        assertEquals("6,-5", qt.se(qt.root()).getElement());
+
+        qt.addNE(qt.ne(qt.root()),"10,12");
+        qt.addSW(qt.ne(qt.ne(qt.root())),"7,7");
+        assertEquals("7,7", qt.sw(qt.ne(qt.ne(qt.root()))).getElement());
+        assertEquals(7, qt.size());
+        assertEquals(3, qt.height(qt.root()));
+        assertEquals(4, qt.numChildren(qt.root()));
+        assertTrue(qt.isExternal(qt.nw(qt.root())));
+    }
+
+    @Test
+    public void parentAndRootTest() {
+        ArrayQuadTree<String> qt = new ArrayQuadTree<>();
+        Position<String> r = qt.addRoot("A");
+        Position<String> b = qt.addSE(r, "B");
+        assertTrue(qt.isRoot(qt.root()));
+        assertFalse(qt.isRoot(b));
+        assertEquals(r, qt.parent(b));
+        assertNull(qt.parent(r));
+        assertEquals(1, qt.depth(b));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addTwiceTest() {
+        ArrayQuadTree<String> qt = new ArrayQuadTree<>();
+        Position<String> r = qt.addRoot("A");
+        qt.addNE(r, "B");
+        qt.addNE(r, "C");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignPositionTest() {
+        ArrayQuadTree<String> qt = new ArrayQuadTree<>();
+        ArrayQuadTree<String> other = new ArrayQuadTree<>();
+        qt.addRoot("A");
+        qt.nw(other.addRoot("B"));
+    }
+
+    @Test
+    public void growsAcrossChunksTest() {
+        // a long chain forces several chunks to be allocated
+        ArrayQuadTree<Integer> qt = new ArrayQuadTree<>();
+        Position<Integer> p = qt.addRoot(0);
+        for (int i = 1; i < 10000; i++)
+            p = qt.addSW(p, i);
+        assertEquals(10000, qt.size());
+        Position<Integer> walk = qt.root();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals((int)i, (int)walk.getElement());
+            walk = qt.sw(walk);
+        }
+        assertNull(walk);
+    }
+
+    @Test
+    public void removeTest() {
+        ArrayQuadTree<String> qt = new ArrayQuadTree<>();
+        Position<String> r = qt.addRoot("0,0");
+        Position<String> nw = qt.addNW(r, "-3,4");
+        qt.addSE(r, "6,-5");
+        qt.addNE(nw, "-4,5");
+        qt.addSW(qt.root(), "5,6");
+        qt.addNW(qt.se(qt.root()), "7,-6");
+        assertEquals(6, qt.size());
+        assertEquals("-3,4", qt.remove(nw));
+        assertEquals(4, qt.size());
+        // the remaining nodes were moved into the freed slots with their links intact
+        assertNull(qt.nw(qt.root()));
+        assertEquals("6,-5", qt.se(qt.root()).getElement());
+        assertEquals("7,-6", qt.nw(qt.se(qt.root())).getElement());
+        assertEquals("5,6", qt.sw(qt.root()).getElement());
+        assertEquals(qt.root(), qt.parent(qt.sw(qt.root())));
+        assertEquals(qt.se(qt.root()), qt.parent(qt.nw(qt.se(qt.root()))));
+        assertEquals("0,0", qt.remove(qt.root()));
+        assertTrue(qt.isEmpty());
+    }
+}
@@ -0,0 +1,94 @@
+package net.datastructures;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentSpatialTreeMapTest {
+
+    private static final int N = 20000;
+    private static final int READERS = 4;
+
+    private static Coord<Integer, Integer> key(int i) {
+        return new Coord<>(i % 100, i / 100);
+    }
+
+    @Test
+    public void sequentialTest() {
+        ConcurrentSpatialTreeMap<Integer, Integer, Integer> m = new ConcurrentSpatialTreeMap<>();
+        for (int i = 0; i < 1000; i++)
+            m.put(key(i), i);
+        assertEquals(1000, m.size());
+        assertEquals(Integer.valueOf(42), m.get(key(42)));
+        assertEquals(200, m.countInRange(new Coord<>(-1, 5), new Coord<>(100, 4)));
+        assertEquals(22, m.removeRange(new Coord<>(-1, 5), new Coord<>(10, 4)));
+        assertNull(m.get(key(400)));
+        assertEquals(978, m.size());
+    }
+
+    /**
+     * One writer puts values 0, 1, 2, ... in order while readers search the whole map.
+     * Since each put is atomic, every snapshot must hold exactly the values 0..n-1 for some n,
+     * n must never shrink as seen by one reader, and every value the writer has published
+     * must be found by get.
+     */
+    @Test
+    public void stressTest() throws InterruptedException {
+        final ConcurrentSpatialTreeMap<Integer, Integer, Integer> m = new ConcurrentSpatialTreeMap<>();
+        m.setRebuildAlpha(0.6); // keys arrive in order, so the writer keeps rebuilding subtrees
+        final Coord<Integer, Integer> nw = new Coord<>(-1, N);
+        final Coord<Integer, Integer> se = new Coord<>(100, -1);
+        final AtomicInteger published = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < N; i++) {
+                m.put(key(i), i);
+                published.set(i + 1);
+            }
+        }));
+        for (int r = 0; r < READERS; r++) {
+            threads.add(new Thread(() -> {
+                try {
+                    int last = 0;
+                    while (last < N) {
+                        int before = published.get();
+                        boolean[] seen = new boolean[N];
+                        int n = 0;
+                        for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(nw, se, null)) {
+                            int v = e.getValue();
+                            assertEquals(key(v), e.getKey());
+                            assertFalse("duplicate " + v, seen[v]);
+                            seen[v] = true;
+                            n++;
+                        }
+                        for (int i = 0; i < n; i++)
+                            assertTrue("snapshot of " + n + " misses " + i, seen[i]);
+                        assertTrue(n >= before);
+                        assertTrue(n >= last);
+                        last = n;
+                        int count = m.countInRange(nw, se);
+                        assertTrue(count >= n);
+                        if (before > 0)
+                            assertEquals(Integer.valueOf(before - 1), m.get(key(before - 1)));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertEquals(N, m.size());
+    }
+}
@@ -0,0 +1,165 @@
+package net.datastructures;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DoubleSpatialTreeMapTest {
+
+    private DoubleSpatialTreeMap<Integer> small() {
+        DoubleSpatialTreeMap<Integer> m = new DoubleSpatialTreeMap<>();
+        m.put(0, 0, 0);
+        m.put(-3, 4, 1);
+        m.put(3, 2, 2);
+        m.put(-5, -6, 3);
+        m.put(6, -5, 4);
+        m.put(10, 12, 5);
+        m.put(7, 7, 6);
+        return m;
+    }
+
+    private DoubleSpatialTreeMap<Integer> medium() {
+        DoubleSpatialTreeMap<Integer> m = new DoubleSpatialTreeMap<>();
+        int k = 0;
+        for (int i = -20; i < 20; i += 8) {
+            for (int j = -20; j < 20; j += 8) {
+                m.put(i, j, k);
+                k++;
+            }
+        }
+        return m;
+    }
+
+    @Test
+    public void testSmallPut() {
+        DoubleSpatialTreeMap<Integer> m = small();
+        assertEquals(7, m.size());
+        assertEquals(4, m.treeHeight());
+        assertEquals((int)6, (int)m.put(7, 7, 1001));
+        assertEquals((int)1001, (int)m.get(7, 7));
+        assertEquals(7, m.size());
+    }
+
+    @Test
+    public void testMediumPut() {
+        DoubleSpatialTreeMap<Integer> m = medium();
+        assertEquals(25, m.size());
+        assertEquals(9, m.treeHeight());
+        assertNull(m.put(new Coord<>(1000.0, 1000.0), 1000));
+        assertEquals((int)1000, (int)m.get(new Coord<>(1000.0, 1000.0)));
+    }
+
+    @Test
+    public void testMediumGet() {
+        DoubleSpatialTreeMap<Integer> m = medium();
+        assertNull(m.get(0, 2));
+        assertNull(m.get(0, 0));
+        assertEquals((int)1, (int)m.get(-20, -12));
+        assertEquals((int)10, (int)m.get(-4, -20));
+        assertEquals((int)20, (int)m.get(new Coord<>(12.0, -20.0)));
+    }
+
+    @Test
+    public void smallSubMapTest() {
+        DoubleSpatialTreeMap<Integer> m = small();
+
+        Set<Coord<Double, Double>> found = new HashSet<>();
+        for (Entry<Coord<Double, Double>, Integer> e : m.subMap(-4, 4, 4, -4, new CountingVisitor<>()))
+            found.add(e.getKey());
+        assertEquals(3, found.size());
+        assertTrue(found.contains(new Coord<>(0.0, 0.0)));
+        assertTrue(found.contains(new Coord<>(-3.0, 4.0)));
+        assertTrue(found.contains(new Coord<>(3.0, 2.0)));
+    }
+
+    @Test
+    public void mediumSubMapMatchesSpatialTreeMapTest() {
+        DoubleSpatialTreeMap<Integer> m = medium();
+        SpatialTreeMap<Double, Double, Integer> reference = new SpatialTreeMap<>();
+        for (Entry<Coord<Double, Double>, Integer> e : m.entrySet())
+            reference.put(e.getKey(), e.getValue());
+
+        Coord<Double, Double> nw = new Coord<>(-13.0, 17.0);
+        Coord<Double, Double> se = new Coord<>(5.0, -4.0);
+        Set<Coord<Double, Double>> expected = new HashSet<>();
+        for (Entry<Coord<Double, Double>, Integer> e : reference.subMap(nw, se, new CountingVisitor<>()))
+            expected.add(e.getKey());
+        Set<Coord<Double, Double>> found = new HashSet<>();
+        for (Entry<Coord<Double, Double>, Integer> e : m.subMap(nw, se, new CountingVisitor<>()))
+            found.add(e.getKey());
+        assertEquals(expected, found);
+        assertEquals(9, found.size());
+    }
+
+    @Test
+    public void forEachInRangeTest() {
+        DoubleSpatialTreeMap<Integer> m = medium();
+        final List<Entry<Coord<Double, Double>, Integer>> hits = new ArrayList<>();
+        assertTrue(m.forEachInRange(-13, 17, 5, -4, e -> hits.add(e)));
+        assertEquals(9, hits.size());
+        hits.clear();
+        assertFalse(m.forEachInRange(new Coord<>(-13.0, 17.0), new Coord<>(5.0, -4.0), e -> { hits.add(e); return false; }));
+        assertEquals(1, hits.size());
+    }
+
+    @Test
+    public void countInRangeTest() {
+        DoubleSpatialTreeMap<Integer> m = medium();
+        assertEquals(9, m.countInRange(new Coord<>(-13.0, 17.0), new Coord<>(5.0, -4.0)));
+        assertEquals(25, m.countInRange(new Coord<>(-100.0, 100.0), new Coord<>(100.0, -100.0)));
+    }
+
+    @Test
+    public void randomCountInRangeTest() {
+        Random r = new Random(2230);
+        DoubleSpatialTreeMap<Integer> m = new DoubleSpatialTreeMap<>();
+        for (int i = 0; i < 20000; i++)
+            m.put(r.nextInt(300), r.nextInt(300), i);      // many keys are put twice
+        for (int i = 0; i < 200; i++) {
+            double x = r.nextInt(300) - 0.5 * r.nextInt(2), y = r.nextInt(300);
+            double maxX = x + 1 + r.nextInt(200), minY = y - 1 - r.nextInt(200);
+            int expected = ((List<?>) m.subMap(x, y, maxX, minY, null)).size();
+            assertEquals(expected, m.countInRange(x, y, maxX, minY));
+        }
+        assertEquals(m.size(), m.countInRange(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                                              Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void randomRemoveTest() {
+        Random r = new Random(2230);
+        DoubleSpatialTreeMap<Integer> m = new DoubleSpatialTreeMap<>();
+        java.util.Map<Coord<Double, Double>, Integer> expected = new java.util.HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            Coord<Double, Double> k = new Coord<>((double) r.nextInt(300), (double) r.nextInt(300));
+            if (r.nextInt(3) == 0)
+                assertEquals(expected.remove(k), m.remove(k));
+            else
+                assertEquals(expected.put(k, i), m.put(k, i));
+        }
+        assertEquals(expected.size(), m.size());
+        for (java.util.Map.Entry<Coord<Double, Double>, Integer> e : expected.entrySet())
+            assertEquals(e.getValue(), m.get(e.getKey()));
+        // the subtree sizes follow the removals
+        for (int i = 0; i < 200; i++) {
+            double x = r.nextInt(300), y = r.nextInt(300);
+            double maxX = x + 1 + r.nextInt(200), minY = y - 1 - r.nextInt(200);
+            int n = 0;
+            for (Coord<Double, Double> k : expected.keySet())
+                if (k.getX() >= x && k.getX() <= maxX && k.getY() >= minY && k.getY() <= y)
+                    n++;
+            assertEquals(n, m.countInRange(x, y, maxX, minY));
+        }
+        assertNull(m.remove(-1, -1));
+        for (Coord<Double, Double> k : expected.keySet())
+            m.remove(k);
+        assertEquals(0, m.size());
+        assertEquals(0, m.treeHeight());
+    }
+}
@@ -0,0 +1,138 @@
+package net.datastructures;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class GeoQueriesTest {
+
+    private SpatialTreeMap<Double, Double, Integer> world() {
+        Random r = new Random(2230);
+        SpatialTreeMap<Double, Double, Integer> m = new SpatialTreeMap<>();
+        for (int i = 0; i < 5000; i++)
+            m.put(new Coord<>(r.nextDouble() * 360 - 180, r.nextDouble() * 180 - 90), i);
+        return m;
+    }
+
+    private Set<Coord<Double, Double>> bruteForce(SpatialTreeMap<Double, Double, Integer> m, Coord<Double, Double> center, double km) {
+        Set<Coord<Double, Double>> found = new HashSet<>();
+        HaversineDistance metric = new HaversineDistance();
+        for (Entry<Coord<Double, Double>, Integer> e : m.entrySet())
+            if (metric.distance(center, e.getKey()) <= km)
+                found.add(e.getKey());
+        return found;
+    }
+
+    private Set<Coord<Double, Double>> keys(Iterable<Entry<Coord<Double, Double>, Integer>> entries) {
+        Set<Coord<Double, Double>> found = new HashSet<>();
+        for (Entry<Coord<Double, Double>, Integer> e : entries)
+            found.add(e.getKey());
+        return found;
+    }
+
+    @Test
+    public void haversineTest() {
+        // Los Angeles to New York is about 3936 km
+        assertEquals(3936, HaversineDistance.distance(34.0522, -118.2437, 40.7128, -74.0060), 5);
+        assertEquals(0, HaversineDistance.distance(10, 20, 10, 20), 1e-9);
+    }
+
+    @Test
+    public void withinRadiusTest() {
+        SpatialTreeMap<Double, Double, Integer> m = world();
+        double[][] centers = { {-118.24, 34.05}, {139.69, 35.69}, {0, 0}, {179.5, -17.7}, {-179.9, 52.0}, {10, 89.5}, {-60, -88} };
+        for (double[] c : centers) {
+            Coord<Double, Double> center = new Coord<>(c[0], c[1]);
+            for (double km : new double[] {0, 100, 800, 3000}) {
+                Set<Coord<Double, Double>> expected = bruteForce(m, center, km);
+                assertEquals(center + " " + km, expected, keys(GeoQueries.withinRadius(m, center, km)));
+            }
+        }
+    }
+
+    @Test
+    public void withinRadiusIncludesCenterTest() {
+        SpatialTreeMap<Double, Double, Integer> m = new SpatialTreeMap<>();
+        m.put(new Coord<>(-118.24, 34.05), 1);
+        m.put(new Coord<>(-118.25, 34.06), 2);
+        assertEquals(1, GeoQueries.withinRadius(m, new Coord<>(-118.24, 34.05), 0).size());
+        assertEquals(2, GeoQueries.withinRadius(m, new Coord<>(-118.24, 34.05), 5).size());
+    }
+
+    @Test
+    public void nearestHaversineTest() {
+        SpatialTreeMap<Double, Double, Integer> m = world();
+        HaversineDistance metric = new HaversineDistance();
+        Coord<Double, Double> q = new Coord<>(179.9, 10.0);
+        double best = Double.MAX_VALUE;
+        for (Entry<Coord<Double, Double>, Integer> e : m.entrySet())
+            best = Math.min(best, metric.distance(q, e.getKey()));
+        assertEquals(best, metric.distance(q, m.nearest(q, 1, metric).get(0).getKey()), 1e-9);
+    }
+
+    @Test
+    public void antimeridianSubMapTest() {
+        SpatialTreeMap<Double, Double, Integer> m = world();
+        // Japan through the Aleutians and Fiji
+        Coord<Double, Double> nw = new Coord<>(130.0, 60.0);
+        Coord<Double, Double> se = new Coord<>(-160.0, -25.0);
+        Set<Coord<Double, Double>> expected = new HashSet<>();
+        for (Entry<Coord<Double, Double>, Integer> e : m.entrySet()) {
+            double x = e.getKey().getX(), y = e.getKey().getY();
+            if ((x >= 130 || x <= -160) && y <= 60 && y >= -25)
+                expected.add(e.getKey());
+        }
+        List<Entry<Coord<Double, Double>, Integer>> found = GeoQueries.subMap(m, nw, se);
+        assertEquals(expected.size(), found.size());
+        assertEquals(expected, keys(found));
+
+        // a box that does not wrap is an ordinary range query
+        Coord<Double, Double> west = new Coord<>(-160.0, 60.0);
+        Coord<Double, Double> east = new Coord<>(130.0, -25.0);
+        assertEquals(keys(m.subMap(west, east, null)), keys(GeoQueries.subMap(m, west, east)));
+    }
+
+    @Test
+    public void antimeridianEdgeTest() {
+        SpatialTreeMap<Double, Double, Integer> m = new SpatialTreeMap<>();
+        m.put(new Coord<>(180.0, 0.0), 1);
+        m.put(new Coord<>(-180.0, 1.0), 2);
+        m.put(new Coord<>(179.5, 2.0), 3);
+        m.put(new Coord<>(-175.0, 3.0), 4);
+        // a box starting on the antimeridian
+        Set<Integer> values = new HashSet<>();
+        for (Entry<Coord<Double, Double>, Integer> e : GeoQueries.subMap(m, new Coord<>(180.0, 10.0), new Coord<>(-170.0, -10.0)))
+            values.add(e.getValue());
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 4)), values);
+        // a box ending on it
+        values.clear();
+        for (Entry<Coord<Double, Double>, Integer> e : GeoQueries.subMap(m, new Coord<>(170.0, 10.0), new Coord<>(-180.0, -10.0)))
+            values.add(e.getValue());
+        assertEquals(new HashSet<>(Arrays.asList(1, 2, 3)), values);
+    }
+
+    @Test
+    public void forEachInRangesTest() {
+        SpatialTreeMap<Double, Double, Integer> m = world();
+        // overlapping boxes report each entry once
+        List<Coord<Double, Double>> nws = Arrays.asList(new Coord<>(-10.0, 10.0), new Coord<>(0.0, 20.0));
+        List<Coord<Double, Double>> ses = Arrays.asList(new Coord<>(10.0, -10.0), new Coord<>(20.0, 0.0));
+        Set<Coord<Double, Double>> expected = keys(m.subMap(nws.get(0), ses.get(0), null));
+        expected.addAll(keys(m.subMap(nws.get(1), ses.get(1), null)));
+        final List<Entry<Coord<Double, Double>, Integer>> found = new ArrayList<>();
+        assertTrue(m.forEachInRanges(nws, ses, e -> found.add(e)));
+        assertEquals(expected.size(), found.size());
+        assertEquals(expected, keys(found));
+
+        found.clear();
+        assertFalse(m.forEachInRanges(nws, ses, e -> { found.add(e); return false; }));
+        assertEquals(1, found.size());
+    }
+}
@@ -0,0 +1,151 @@
+package net.datastructures;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class IndexedSpatialMapTest {
+
+    /** Values are years; the map is indexed on the year itself */
+    private IndexedSpatialMap<Integer, Integer, Integer, Integer> years(Random r, int n) {
+        IndexedSpatialMap<Integer, Integer, Integer, Integer> m = new IndexedSpatialMap<>(v -> v);
+        for (int i = 0; i < n; i++)
+            m.put(new Coord<>(r.nextInt(1000), r.nextInt(1000)), 1000 + r.nextInt(1000));
+        return m;
+    }
+
+    private Set<Coord<Integer, Integer>> bruteForce(IndexedSpatialMap<Integer, Integer, Integer, Integer> m,
+                                                    Coord<Integer, Integer> nw, Coord<Integer, Integer> se, int from, int to) {
+        Set<Coord<Integer, Integer>> found = new HashSet<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet()) {
+            Coord<Integer, Integer> k = e.getKey();
+            if (k.getX() >= nw.getX() && k.getX() <= se.getX() && k.getY() <= nw.getY() && k.getY() >= se.getY()
+                    && e.getValue() >= from && e.getValue() <= to)
+                found.add(k);
+        }
+        return found;
+    }
+
+    private Set<Coord<Integer, Integer>> keys(Iterable<Entry<Coord<Integer, Integer>, Integer>> entries) {
+        Set<Coord<Integer, Integer>> found = new HashSet<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : entries)
+            found.add(e.getKey());
+        return found;
+    }
+
+    @Test
+    public void queryTest() {
+        Random r = new Random(2230);
+        IndexedSpatialMap<Integer, Integer, Integer, Integer> m = years(r, 10000);
+        for (int t = 0; t < 60; t++) {
+            int x = r.nextInt(1000), y = r.nextInt(1000), from = 1000 + r.nextInt(1000);
+            Coord<Integer, Integer> nw = new Coord<>(x, y + 1 + r.nextInt(1000));
+            Coord<Integer, Integer> se = new Coord<>(x + 1 + r.nextInt(1000), y);
+            int to = from + r.nextInt(1000);
+            assertEquals(bruteForce(m, nw, se, from, to), keys(m.query(nw, se, from, to)));
+        }
+        assertEquals(60, m.getSpatialPlans() + m.getAttributePlans());
+        assertTrue(m.getSpatialPlans() > 0);
+        assertTrue(m.getAttributePlans() > 0);
+    }
+
+    @Test
+    public void planChoiceTest() {
+        IndexedSpatialMap<Integer, Integer, Integer, Integer> m = years(new Random(2230), 10000);
+        // a narrow time window over the whole map is driven by the year index
+        m.query(new Coord<>(-1, 1000), new Coord<>(1000, -1), 1500, 1501);
+        assertEquals(1, m.getAttributePlans());
+        assertEquals(0, m.getSpatialPlans());
+        // a small box over all years is driven by the spatial index
+        m.query(new Coord<>(10, 20), new Coord<>(20, 10), 1000, 1999);
+        assertEquals(1, m.getSpatialPlans());
+        m.resetPlanCounters();
+        assertEquals(0, m.getAttributePlans() + m.getSpatialPlans());
+    }
+
+    @Test
+    public void updateTest() {
+        IndexedSpatialMap<Integer, Integer, Integer, Integer> m = new IndexedSpatialMap<>(v -> v);
+        m.put(new Coord<>(1, 1), 1900);
+        m.put(new Coord<>(2, 2), 1950);
+        m.put(new Coord<>(3, 3), 1950);
+        assertEquals((int)1950, (int)m.put(new Coord<>(2, 2), 2000));
+        Coord<Integer, Integer> nw = new Coord<>(0, 10);
+        Coord<Integer, Integer> se = new Coord<>(10, 0);
+        assertEquals(1, m.query(nw, se, 1950, 1950).size());
+        assertEquals(1, m.query(nw, se, 2000, 2010).size());
+        assertEquals((int)1950, (int)m.remove(new Coord<>(3, 3)));
+        assertEquals(0, m.query(nw, se, 1950, 1950).size());
+        assertEquals(2, m.size());
+        assertEquals(2, m.query(nw, se, 1900, 2000).size());
+    }
+
+    /** A key mapped to null is still unindexed when its value changes or it is removed */
+    @Test
+    public void nullValueTest() {
+        IndexedSpatialMap<Integer, Integer, Integer, Integer> m = new IndexedSpatialMap<>(v -> v == null ? 0 : v);
+        for (int i = 0; i < 100; i++)
+            m.put(new Coord<>(i, i), 2000);
+        Coord<Integer, Integer> nw = new Coord<>(-1, 1000);
+        Coord<Integer, Integer> se = new Coord<>(1000, -1);
+        Coord<Integer, Integer> k = new Coord<>(500, 500);
+        assertNull(m.put(k, null));
+        assertEquals(1, m.query(nw, se, 0, 0).size());
+        assertNull(m.put(k, 1990));
+        assertEquals(0, m.query(nw, se, 0, 0).size());
+        assertEquals(1, m.query(nw, se, 1990, 1990).size());
+        m.put(k, null);
+        assertNull(m.remove(k));
+        assertEquals(0, m.query(nw, se, 0, 0).size());
+        assertEquals(100, m.size());
+        assertTrue(m.getAttributePlans() > 0);
+    }
+
+    /** Both plans report the entries stored in the map, not copies */
+    @Test
+    public void sameEntriesTest() {
+        IndexedSpatialMap<Integer, Integer, Integer, Integer> m = years(new Random(2230), 10000);
+        Coord<Integer, Integer> nw = new Coord<>(-1, 1000);
+        Coord<Integer, Integer> se = new Coord<>(1000, -1);
+        Set<Entry<Coord<Integer, Integer>, Integer>> stored = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(nw, se, null))
+            stored.add(e);
+        List<Entry<Coord<Integer, Integer>, Integer>> byYear = m.query(nw, se, 1500, 1501);
+        assertEquals(1, m.getAttributePlans());
+        assertFalse(byYear.isEmpty());
+        for (Entry<Coord<Integer, Integer>, Integer> e : byYear)
+            assertTrue(stored.contains(e));
+        List<Entry<Coord<Integer, Integer>, Integer>> byBox = m.query(new Coord<>(10, 200), new Coord<>(200, 10), 1000, 1999);
+        assertEquals(1, m.getSpatialPlans());
+        for (Entry<Coord<Integer, Integer>, Integer> e : byBox)
+            assertTrue(stored.contains(e));
+    }
+
+    /** Keys the comparators treat as equal share one entry and one index slot, whatever Coord.equals says */
+    @Test
+    public void customComparatorTest() {
+        // -0.0 and 0.0 are the same coordinate to the comparators but not to Double.equals
+        java.util.Comparator<Double> signless = (a, b) -> Double.compare(a + 0.0, b + 0.0);
+        IndexedSpatialMap<Double, Double, Integer, Integer> m =
+                new IndexedSpatialMap<>(signless, signless, v -> v, java.util.Comparator.<Integer>naturalOrder());
+        for (int i = 1; i <= 100; i++)
+            m.put(new Coord<>((double) i, (double) i), 2000);
+        Coord<Double, Double> nw = new Coord<>(-1.0, 1000.0);
+        Coord<Double, Double> se = new Coord<>(1000.0, -1.0);
+        assertNull(m.put(new Coord<>(0.0, 0.0), 1990));
+        assertEquals((int)1990, (int)m.put(new Coord<>(-0.0, 0.0), 1995));
+        assertEquals(101, m.size());
+        assertEquals(0, m.query(nw, se, 1990, 1990).size());
+        assertEquals(1, m.query(nw, se, 1995, 1995).size());
+        assertEquals((int)1995, (int)m.remove(new Coord<>(0.0, -0.0)));
+        assertEquals(0, m.query(nw, se, 1990, 1999).size());
+        assertEquals(100, m.query(nw, se, 2000, 2000).size());
+        assertEquals(100, m.size());
+        assertTrue(m.getAttributePlans() > 0);
+    }
+}
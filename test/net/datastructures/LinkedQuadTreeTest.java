@@ -103,4 +103,48 @@ public class LinkedQuadTreeTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void attachTest() {
+        LinkedQuadTree<String> qt = new LinkedQuadTree<>();
+        Position<String> r = qt.addRoot("0,0");
+        LinkedQuadTree<String> nw = new LinkedQuadTree<>();
+        nw.addNE(nw.addRoot("-3,4"), "-4,5");
+        LinkedQuadTree<String> se = new LinkedQuadTree<>();
+        se.addRoot("6,-5");
+        qt.attach(r, nw, new LinkedQuadTree<String>(), new LinkedQuadTree<String>(), se);
+        assertEquals(4, qt.size());
+        assertEquals("-3,4", qt.nw(qt.root()).getElement());
+        assertEquals("-4,5", qt.ne(qt.nw(qt.root())).getElement());
+        assertEquals("6,-5", qt.se(qt.root()).getElement());
+        assertNull(qt.ne(qt.root()));
+        assertEquals(qt.root(), qt.parent(qt.nw(qt.root())));
+        assertTrue(nw.isEmpty());
+        assertTrue(se.isEmpty());
+    }
+
+    @Test
+    public void removeTest() {
+        LinkedQuadTree<String> qt = new LinkedQuadTree<>();
+        Position<String> r = qt.addRoot("0,0");
+        Position<String> nw = qt.addNW(r, "-3,4");
+        qt.addNE(nw, "-4,5");
+        qt.addSW(qt.addSE(nw, "-2,6"), "-1,7");
+        qt.addSE(r, "6,-5");
+        assertEquals(6, qt.size());
+        assertEquals("-3,4", qt.remove(nw));
+        assertEquals(2, qt.size());
+        assertNull(qt.nw(qt.root()));
+        assertEquals("6,-5", qt.se(qt.root()).getElement());
+        assertEquals("0,0", qt.remove(qt.root()));
+        assertTrue(qt.isEmpty());
+        assertNull(qt.root());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void removedPositionTest() {
+        LinkedQuadTree<String> qt = new LinkedQuadTree<>();
+        Position<String> nw = qt.addNW(qt.addRoot("0,0"), "-3,4");
+        qt.remove(nw);
+        qt.set(nw, "x");
+    }
+}
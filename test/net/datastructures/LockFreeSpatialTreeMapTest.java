@@ -0,0 +1,149 @@
+package net.datastructures;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockFreeSpatialTreeMapTest {
+
+    private static final int THREADS = 4;
+
+    /** Runs each task in its own thread, rethrowing the first failure */
+    private static void runAll(List<Runnable> tasks) throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (Runnable task : tasks)
+            threads.add(new Thread(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    @Test
+    public void sequentialTest() {
+        LockFreeSpatialTreeMap<Integer, Integer, Integer> m = new LockFreeSpatialTreeMap<>();
+        SpatialTreeMap<Integer, Integer, Integer> expected = new SpatialTreeMap<>();
+        Random r = new Random(7);
+        for (int i = 0; i < 5000; i++) {
+            Coord<Integer, Integer> k = new Coord<>(r.nextInt(200), r.nextInt(200));
+            assertEquals(expected.put(k, i), m.put(k, i));
+        }
+        assertEquals(expected.size(), m.size());
+        for (int i = 0; i < 100; i++) {
+            Coord<Integer, Integer> k = new Coord<>(r.nextInt(200), r.nextInt(200));
+            assertEquals(expected.get(k), m.get(k));
+            Coord<Integer, Integer> nw = new Coord<>(r.nextInt(100), 100 + r.nextInt(100));
+            Coord<Integer, Integer> se = new Coord<>(100 + r.nextInt(100), r.nextInt(100));
+            Set<Coord<Integer, Integer>> want = new HashSet<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : expected.subMap(nw, se, null))
+                want.add(e.getKey());
+            Set<Coord<Integer, Integer>> got = new HashSet<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(nw, se, null)) {
+                assertEquals(expected.get(e.getKey()), e.getValue());
+                got.add(e.getKey());
+            }
+            assertEquals(want, got);
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void removeTest() {
+        LockFreeSpatialTreeMap<Integer, Integer, Integer> m = new LockFreeSpatialTreeMap<>();
+        m.put(new Coord<>(1, 1), 1);
+        m.remove(new Coord<>(1, 1));
+    }
+
+    /** Threads insert interleaved keys, so they keep racing for the same child slots */
+    @Test
+    public void concurrentInsertTest() throws InterruptedException {
+        final int n = 20000;
+        final LockFreeSpatialTreeMap<Integer, Integer, Integer> m = new LockFreeSpatialTreeMap<>();
+        List<Runnable> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            tasks.add(() -> {
+                Random r = new Random(offset);
+                for (int i = offset; i < n; i += THREADS) {
+                    int j = r.nextInt(n);   // hits keys of other threads too, but stored values always match keys
+                    m.put(new Coord<>(j % 150, j / 150), j);
+                    assertNull(m.put(new Coord<>(i % 150, i / 150 + n), i));
+                }
+            });
+        }
+        tasks.add(() -> {                   // a reader checking every snapshot it sees
+            for (int round = 0; round < 50; round++) {
+                Set<Coord<Integer, Integer>> seen = new HashSet<>();
+                for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet()) {
+                    int v = e.getValue();
+                    assertEquals(v % 150, (int) e.getKey().getX());
+                    assertTrue(seen.add(e.getKey()));
+                }
+            }
+        });
+        runAll(tasks);
+        int found = 0;
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(new Coord<>(-1, 2 * n), new Coord<>(150, n - 1), null)) {
+            assertEquals(e.getKey().getY() - n, e.getValue() / 150);
+            found++;
+        }
+        assertEquals(n, found);
+        for (int i = 0; i < n; i++)
+            assertEquals(Integer.valueOf(i), m.get(new Coord<>(i % 150, i / 150 + n)));
+        assertEquals(n + m.countInRange(new Coord<>(-1, n - 1), new Coord<>(150, -1)), m.size());
+    }
+
+    /**
+     * Threads overwrite the same few keys with values unique to each put. Since each
+     * replacement is one atomic swap, every value must be handed back by exactly one
+     * later put or still be in the map, and exactly one put per key finds it absent.
+     */
+    @Test
+    public void atomicReplaceTest() throws InterruptedException {
+        final int keys = 8, puts = 20000;
+        final LockFreeSpatialTreeMap<Integer, Integer, Integer> m = new LockFreeSpatialTreeMap<>();
+        final List<List<Integer>> returned = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            final List<Integer> mine = new ArrayList<>();
+            returned.add(mine);
+            tasks.add(() -> {
+                for (int i = 0; i < puts; i++) {
+                    Integer old = m.put(new Coord<>(i % keys, i % keys), id * puts + i);
+                    mine.add(old);
+                }
+            });
+        }
+        runAll(tasks);
+        Set<Integer> values = new HashSet<>();
+        int absent = 0;
+        for (List<Integer> mine : returned)
+            for (Integer old : mine) {
+                if (old == null)
+                    absent++;
+                else
+                    assertTrue("value returned twice: " + old, values.add(old));
+            }
+        for (int k = 0; k < keys; k++)
+            assertTrue(values.add(m.get(new Coord<>(k, k))));
+        assertEquals(keys, absent);
+        assertEquals(THREADS * puts, values.size());
+        assertEquals(keys, m.size());
+    }
+}
@@ -0,0 +1,105 @@
+package net.datastructures;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PersistentSpatialTreeMapTest {
+
+    private static java.util.Map<Coord<Integer, Integer>, Integer> contents(PersistentSpatialTreeMap<Integer, Integer, Integer> m) {
+        java.util.Map<Coord<Integer, Integer>, Integer> found = new java.util.HashMap<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet()) {
+            assertFalse("duplicate key " + e.getKey(), found.containsKey(e.getKey()));
+            found.put(e.getKey(), e.getValue());
+        }
+        assertEquals(m.size(), found.size());
+        return found;
+    }
+
+    @Test
+    public void putGetTest() {
+        PersistentSpatialTreeMap<Integer, Integer, Integer> empty = new PersistentSpatialTreeMap<>();
+        PersistentSpatialTreeMap<Integer, Integer, Integer> one = empty.put(new Coord<>(1, 1), 10);
+        PersistentSpatialTreeMap<Integer, Integer, Integer> two = one.put(new Coord<>(1, 1), 20);
+        assertTrue(empty.isEmpty());
+        assertNull(empty.get(new Coord<>(1, 1)));
+        assertEquals(Integer.valueOf(10), one.get(new Coord<>(1, 1)));
+        assertEquals(Integer.valueOf(20), two.get(new Coord<>(1, 1)));
+        assertEquals(1, two.size());
+        assertSame(two, two.put(new Coord<>(1, 1), two.get(new Coord<>(1, 1))));
+        assertSame(two, two.remove(new Coord<>(2, 2)));
+        assertTrue(two.remove(new Coord<>(1, 1)).isEmpty());
+        assertTrue(one.containsKey(new Coord<>(1, 1)));
+    }
+
+    /** Every version keeps its contents, whatever is done to the versions derived from it */
+    @Test
+    public void versionsTest() {
+        Random r = new Random(3);
+        PersistentSpatialTreeMap<Integer, Integer, Integer> m = new PersistentSpatialTreeMap<>();
+        java.util.Map<Coord<Integer, Integer>, Integer> model = new java.util.HashMap<>();
+        List<PersistentSpatialTreeMap<Integer, Integer, Integer>> versions = new ArrayList<>();
+        List<java.util.Map<Coord<Integer, Integer>, Integer>> models = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            Coord<Integer, Integer> k = new Coord<>(r.nextInt(60), r.nextInt(60));
+            if (r.nextInt(4) == 0) {
+                m = m.remove(k);
+                model.remove(k);
+            } else {
+                m = m.put(k, i);
+                model.put(k, i);
+            }
+            if (i % 100 == 0) {
+                versions.add(m);
+                models.add(new java.util.HashMap<>(model));
+            }
+        }
+        versions.add(m);
+        models.add(model);
+        for (int v = 0; v < versions.size(); v++) {
+            PersistentSpatialTreeMap<Integer, Integer, Integer> version = versions.get(v);
+            assertEquals(models.get(v), contents(version));
+            Set<Coord<Integer, Integer>> want = new HashSet<>();
+            for (Coord<Integer, Integer> k : models.get(v).keySet())
+                if (k.getX() >= 10 && k.getX() <= 30 && k.getY() >= 20 && k.getY() <= 45)
+                    want.add(k);
+            Set<Coord<Integer, Integer>> got = new HashSet<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : version.subMap(new Coord<>(10, 45), new Coord<>(30, 20)))
+                got.add(e.getKey());
+            assertEquals(want, got);
+        }
+    }
+
+    /** A put copies only the nodes on the path to its key; all others are shared */
+    @Test
+    public void sharingTest() {
+        Random r = new Random(5);
+        PersistentSpatialTreeMap<Integer, Integer, Integer> m = new PersistentSpatialTreeMap<>();
+        for (int i = 0; i < 10000; i++)
+            m = m.put(new Coord<>(r.nextInt(100000), r.nextInt(100000)), i);
+        Set<Entry<Coord<Integer, Integer>, Integer>> before = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet())
+            before.add(e);
+        Coord<Integer, Integer> key = new Coord<>(-1, -1);
+        PersistentSpatialTreeMap<Integer, Integer, Integer> next = m.put(key, -1);
+        int path = 0;
+        for (Entry<Coord<Integer, Integer>, Integer> e : next.entrySet())
+            if (!before.contains(e))
+                path++;
+        // the new node plus the copies of its ancestors
+        final int[] depth = new int[1];
+        next.subMap(new Coord<>(-2, 0), new Coord<>(0, -2), p -> depth[0]++);
+        assertTrue(path <= depth[0] + 1);
+        assertTrue(path < 50);
+        assertEquals(m.size() + 1, next.size());
+        assertNull(m.get(key));
+    }
+}
@@ -2,7 +2,14 @@ package net.datastructures;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -60,6 +67,17 @@ public class SpatialTreeMapTest {
 
     }
 
+    @Test
+    public void testNoSentinelNodes() {
+        SpatialTreeMap<Integer, Integer, Integer> m = new SpatialTreeMap<>();
+        assertEquals(0, m.size());
+        assertEquals(0, m.treeHeight());
+        assertEquals(null, m.get(new Coord<>(1, 1)));
+        m = medium();
+        // one node per entry, no empty leaves
+        assertEquals(m.size(), m.tree.size());
+    }
+
     @Test
     public void testSmallGet() {
         SpatialTreeMap<Integer, Integer, Integer> m = small();
@@ -98,6 +116,218 @@ public class SpatialTreeMapTest {
 
     }
 
+    @Test
+    public void arrayBackendTest() {
+        SpatialTreeMap<Integer, Integer, Integer> m = new SpatialTreeMap<>(new ArrayQuadTree<Entry<Coord<Integer, Integer>, Integer>>());
+        SpatialTreeMap<Integer, Integer, Integer> linked = medium();
+        for (Entry<Coord<Integer, Integer>, Integer> e : linked.entrySet())
+            m.put(e.getKey(), e.getValue());
+        assertEquals(25, m.size());
+        assertEquals(linked.treeHeight(), m.treeHeight());
+        assertEquals((int)10, (int)m.get(new Coord<>(-4, -20)));
+        assertEquals(null, m.get(new Coord<>(0,0)));
+
+        Set<Coord<Integer, Integer>> found = new HashSet<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(new Coord<>(-10, 10), new Coord<>(10, -10), new CountingVisitor<>()))
+            found.add(e.getKey());
+        assertEquals(4, found.size());
+        assertTrue(found.contains(new Coord<>(4, -4)));
+    }
+
+    @Test
+    public void bulkLoadTest() {
+        SpatialTreeMap<Integer, Integer, Integer> m = medium();
+        List<Entry<Coord<Integer, Integer>, Integer>> entries = new ArrayList<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet())
+            entries.add(e);
+        SpatialTreeMap<Integer, Integer, Integer> b = SpatialTreeMap.bulkLoad(entries);
+        assertEquals(25, b.size());
+        assertTrue(b.treeHeight() < m.treeHeight());
+        assertTrue(b.treeHeight() <= 4);
+        for (Entry<Coord<Integer, Integer>, Integer> e : entries)
+            assertEquals(e.getValue(), b.get(e.getKey()));
+        assertEquals(null, b.get(new Coord<>(0,0)));
+
+        Set<Coord<Integer, Integer>> found = new HashSet<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : b.subMap(new Coord<>(-10, 10), new Coord<>(10, -10), new CountingVisitor<>()))
+            found.add(e.getKey());
+        assertEquals(4, found.size());
+    }
+
+    @Test
+    public void bulkLoadDuplicatesTest() {
+        List<Entry<Coord<Integer, Integer>, Integer>> entries = new ArrayList<>();
+        entries.add(new AbstractMap.MapEntry<>(new Coord<>(1, 1), 1));
+        entries.add(new AbstractMap.MapEntry<>(new Coord<>(2, 2), 2));
+        entries.add(new AbstractMap.MapEntry<>(new Coord<>(1, 1), 3));
+        SpatialTreeMap<Integer, Integer, Integer> b = SpatialTreeMap.bulkLoad(entries);
+        assertEquals(2, b.size());
+        assertEquals((int)3, (int)b.get(new Coord<>(1, 1)));
+        assertEquals(0, SpatialTreeMap.bulkLoad(new ArrayList<Entry<Coord<Integer, Integer>, Integer>>()).size());
+    }
+
+    @Test
+    public void parallelBulkLoadTest() {
+        // enough entries that the top levels are built by separate tasks
+        Random r = new Random(2230);
+        SpatialTreeMap<Integer, Integer, Integer> m = new SpatialTreeMap<>();
+        List<Entry<Coord<Integer, Integer>, Integer>> entries = new ArrayList<>();
+        for (int i = 0; i < 40000; i++) {
+            Coord<Integer, Integer> c = new Coord<>(r.nextInt(1000), r.nextInt(1000));
+            m.put(c, i);
+            entries.add(new AbstractMap.MapEntry<>(c, i));
+        }
+        SpatialTreeMap<Integer, Integer, Integer> p = SpatialTreeMap.parallelBulkLoad(entries);
+        assertEquals(m.size(), p.size());
+        assertEquals(SpatialTreeMap.bulkLoad(entries).treeHeight(), p.treeHeight());
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet())
+            assertEquals(e.getValue(), p.get(e.getKey()));
+
+        Set<Coord<Integer, Integer>> expected = new HashSet<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(new Coord<>(100, 700), new Coord<>(400, 250), new CountingVisitor<>()))
+            expected.add(e.getKey());
+        Set<Coord<Integer, Integer>> found = new HashSet<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : p.subMap(new Coord<>(100, 700), new Coord<>(400, 250), new CountingVisitor<>()))
+            found.add(e.getKey());
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void degenerateTreeTest() throws InterruptedException {
+        // sorted input makes a chain; run on a thread with a tiny call stack so that
+        // any recursion proportional to the height would overflow
+        final int N = 5000;
+        final List<Throwable> failures = new ArrayList<>();
+        Thread t = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    SpatialTreeMap<Integer, Integer, Integer> m = new SpatialTreeMap<>();
+                    for (int i = 0; i < N; i++)
+                        m.put(new Coord<>(i, i), i);
+                    assertEquals(N, m.treeHeight());
+                    assertEquals((int)(N - 1), (int)m.get(new Coord<>(N - 1, N - 1)));
+                    int found = 0;
+                    for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(new Coord<>(-1, N), new Coord<>(N, -1), new CountingVisitor<>()))
+                        found++;
+                    assertEquals(N, found);
+                    Position<Entry<Coord<Integer, Integer>, Integer>> deepest = m.tree.root();
+                    while (m.tree.sw(deepest) != null)
+                        deepest = m.tree.sw(deepest);
+                    assertEquals(N - 1, m.tree.depth(deepest));
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        }, "small-stack", 64 * 1024);
+        t.start();
+        t.join();
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    @Test
+    public void lazySubMapTest() {
+        SpatialTreeMap<Integer, Integer, Integer> m = medium();
+        Coord<Integer, Integer> nw = new Coord<>(-13, 17);
+        Coord<Integer, Integer> se = new Coord<>(5, -4);
+        List<Entry<Coord<Integer, Integer>, Integer>> expected = new ArrayList<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(nw, se, new CountingVisitor<>()))
+            expected.add(e);
+        List<Entry<Coord<Integer, Integer>, Integer>> found = new ArrayList<>();
+        for (Entry<Coord<Integer, Integer>, Integer> e : m.lazySubMap(nw, se))
+            found.add(e);
+        assertEquals(9, found.size());
+        assertEquals(expected, found);
+
+        // stopping early
+        Iterator<Entry<Coord<Integer, Integer>, Integer>> it = m.lazySubMap(nw, se).iterator();
+        assertTrue(it.hasNext());
+        assertEquals(expected.get(0), it.next());
+
+        // invalid box and empty map
+        assertFalse(m.lazySubMap(se, nw).iterator().hasNext());
+        assertFalse(new SpatialTreeMap<Integer, Integer, Integer>().lazySubMap(nw, se).iterator().hasNext());
+    }
+
+    @Test
+    public void forEachInRangeTest() {
+        SpatialTreeMap<Integer, Integer, Integer> m = medium();
+        Coord<Integer, Integer> nw = new Coord<>(-13, 17);
+        Coord<Integer, Integer> se = new Coord<>(5, -4);
+        final List<Entry<Coord<Integer, Integer>, Integer>> all = new ArrayList<>();
+        assertTrue(m.forEachInRange(nw, se, e -> all.add(e)));
+        assertEquals(9, all.size());
+
+        // the first three hits only
+        final List<Entry<Coord<Integer, Integer>, Integer>> firstHits = new ArrayList<>();
+        assertFalse(m.forEachInRange(nw, se, e -> { firstHits.add(e); return firstHits.size() < 3; }));
+        assertEquals(all.subList(0, 3), firstHits);
+
+        // existence check
+        assertFalse(m.forEachInRange(nw, se, e -> false));
+        assertTrue(m.forEachInRange(new Coord<>(0, 2), new Coord<>(2, 0), e -> false));
+    }
+
+    @Test
+    public void nearestTest() {
+        Random r = new Random(2230);
+        SpatialTreeMap<Integer, Integer, Integer> m = new SpatialTreeMap<>();
+        for (int i = 0; i < 2000; i++)
+            m.put(new Coord<>(r.nextInt(10000), r.nextInt(10000)), i);
+        DistanceFunction<Integer, Integer> metric = new EuclideanDistance<>();
+        for (int t = 0; t < 20; t++) {
+            Coord<Integer, Integer> q = new Coord<>(r.nextInt(12000) - 1000, r.nextInt(12000) - 1000);
+            List<Double> expected = new ArrayList<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet())
+                expected.add(metric.distance(q, e.getKey()));
+            Collections.sort(expected);
+
+            CountingVisitor<Entry<Coord<Integer, Integer>, Integer>> s = new CountingVisitor<>();
+            List<Entry<Coord<Integer, Integer>, Integer>> found = m.nearest(q, 5, metric, s);
+            assertEquals(5, found.size());
+            for (int i = 0; i < 5; i++)
+                assertEquals(expected.get(i), metric.distance(q, found.get(i).getKey()), 1e-9);
+            assertTrue(s.getCount() < m.size() / 4);
+        }
+        assertEquals(0, m.nearest(new Coord<>(0, 0), 0, metric).size());
+        assertEquals(7, small().nearest(new Coord<>(0, 0), 10, metric).size());
+        assertEquals(new Coord<>(3, 2), small().nearest(new Coord<>(4, 1), 1, metric).get(0).getKey());
+    }
+
+    @Test
+    public void exactPruningTest() {
+        Random r = new Random(2230);
+        SpatialTreeMap<Integer, Integer, Integer> m = new SpatialTreeMap<>();
+        for (int i = 0; i < 5000; i++)
+            m.put(new Coord<>(r.nextInt(10000), r.nextInt(10000)), i);
+        for (int t = 0; t < 50; t++) {
+            int x = r.nextInt(11000) - 500, y = r.nextInt(11000) - 500;
+            Coord<Integer, Integer> nw = new Coord<>(x, y + 1 + r.nextInt(3000));
+            Coord<Integer, Integer> se = new Coord<>(x + 1 + r.nextInt(3000), y);
+            Set<Coord<Integer, Integer>> expected = new HashSet<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.subMapLinear(nw, se, new CountingVisitor<>()))
+                expected.add(e.getKey());
+            List<Coord<Integer, Integer>> found = new ArrayList<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(nw, se, new CountingVisitor<>()))
+                found.add(e.getKey());
+            assertEquals(expected.size(), found.size());
+            assertEquals(expected, new HashSet<>(found));
+            List<Coord<Integer, Integer>> lazy = new ArrayList<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.lazySubMap(nw, se))
+                lazy.add(e.getKey());
+            assertEquals(found, lazy);
+        }
+
+        // a box east of every key only explores quadrants that reach east
+        CountingVisitor<Entry<Coord<Integer, Integer>, Integer>> s = new CountingVisitor<>();
+        assertEquals(0, ((List<?>) m.subMap(new Coord<>(20000, 20000), new Coord<>(30000, -20000), s)).size());
+        assertTrue(s.getCount() < m.size() / 20);
+
+        // a box covering every key is reported wholesale, visiting each node once
+        s = new CountingVisitor<>();
+        assertEquals(m.size(), ((List<?>) m.subMap(new Coord<>(-1, 10000), new Coord<>(10000, -1), s)).size());
+        assertEquals(m.size(), s.getCount());
+    }
+
     @Test
     public void smallSubMapTest() {
         SpatialTreeMap<Integer, Integer, Integer> m = small();
@@ -154,5 +384,385 @@ public class SpatialTreeMapTest {
         assertTrue(found.contains(new Coord<>(4, 4)));
     }
 
+    @Test
+    public void removeTest() {
+        SpatialTreeMap<Integer, Integer, Integer> m = small();
+        assertEquals((int)2, (int)m.remove(new Coord<>(3, 2)));
+        assertNull(m.remove(new Coord<>(3, 2)));
+        assertNull(m.get(new Coord<>(3, 2)));
+        assertEquals(6, m.size());
+        assertEquals((int)6, (int)m.get(new Coord<>(7, 7)));
+        assertEquals((int)0, (int)m.remove(new Coord<>(0, 0)));
+        assertEquals(5, m.size());
+        assertEquals((int)5, (int)m.get(new Coord<>(10, 12)));
+        assertNull(new SpatialTreeMap<Integer, Integer, Integer>().remove(new Coord<>(0, 0)));
+    }
+
+    /** Empty maps on each backing tree, for tests that must hold on both */
+    private static List<SpatialTreeMap<Integer, Integer, Integer>> backends() {
+        List<SpatialTreeMap<Integer, Integer, Integer>> maps = new ArrayList<>();
+        maps.add(new SpatialTreeMap<Integer, Integer, Integer>());
+        maps.add(new SpatialTreeMap<>(new ArrayQuadTree<Entry<Coord<Integer, Integer>, Integer>>()));
+        return maps;
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void randomRemoveTest() {
+        for (SpatialTreeMap<Integer, Integer, Integer> m : backends()) {
+            Random r = new Random(2230);
+            java.util.Map<Coord<Integer, Integer>, Integer> expected = new java.util.HashMap<>();
+            for (int i = 0; i < 20000; i++) {
+                Coord<Integer, Integer> k = new Coord<>(r.nextInt(300), r.nextInt(300));
+                if (r.nextInt(3) == 0)
+                    assertEquals(expected.remove(k), m.remove(k));
+                else
+                    assertEquals(expected.put(k, i), m.put(k, i));
+            }
+            assertEquals(expected.size(), m.size());
+            for (java.util.Map.Entry<Coord<Integer, Integer>, Integer> e : expected.entrySet())
+                assertEquals(e.getValue(), m.get(e.getKey()));
+            Set<Coord<Integer, Integer>> keys = new HashSet<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(new Coord<>(50, 250), new Coord<>(250, 50), null))
+                keys.add(e.getKey());
+            Set<Coord<Integer, Integer>> inBox = new HashSet<>();
+            for (Coord<Integer, Integer> k : expected.keySet())
+                if (k.getX() >= 50 && k.getX() <= 250 && k.getY() >= 50 && k.getY() <= 250)
+                    inBox.add(k);
+            assertEquals(inBox, keys);
+        }
+    }
+
+    @Test
+    public void removeRangeTest() {
+        for (SpatialTreeMap<Integer, Integer, Integer> m : backends()) {
+            Random r = new Random(2230);
+            Set<Coord<Integer, Integer>> expected = new HashSet<>();
+            for (int i = 0; i < 5000; i++) {
+                Coord<Integer, Integer> k = new Coord<>(r.nextInt(1000), r.nextInt(1000));
+                m.put(k, i);
+                expected.add(k);
+            }
+            for (int t = 0; t < 30; t++) {
+                int x = r.nextInt(1100) - 50, y = r.nextInt(1100) - 50;
+                Coord<Integer, Integer> nw = new Coord<>(x, y + 1 + r.nextInt(300));
+                Coord<Integer, Integer> se = new Coord<>(x + 1 + r.nextInt(300), y);
+                int removed = 0;
+                for (java.util.Iterator<Coord<Integer, Integer>> it = expected.iterator(); it.hasNext(); ) {
+                    Coord<Integer, Integer> k = it.next();
+                    if (k.getX() >= nw.getX() && k.getX() <= se.getX() && k.getY() <= nw.getY() && k.getY() >= se.getY()) {
+                        it.remove();
+                        removed++;
+                    }
+                }
+                assertEquals(removed, m.removeRange(nw, se));
+                assertEquals(expected.size(), m.size());
+                assertEquals(0, ((List<?>) m.subMap(nw, se, null)).size());
+            }
+            Set<Coord<Integer, Integer>> keys = new HashSet<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet())
+                keys.add(e.getKey());
+            assertEquals(expected, keys);
+            for (Coord<Integer, Integer> k : expected)
+                assertNotNull(m.get(k));
+
+            assertEquals(m.size(), m.removeRange(new Coord<>(-1, 1000), new Coord<>(1000, -1)));
+            assertTrue(m.isEmpty());
+            assertEquals(0, m.removeRange(new Coord<>(-1, 1000), new Coord<>(1000, -1)));
+        }
+    }
+
+    @Test
+    public void rebuildTest() {
+        for (SpatialTreeMap<Integer, Integer, Integer> m : backends()) {
+            m.setRebuildAlpha(0.7);
+            // keys arriving in spatially correlated order: along a diagonal, then row by row
+            int n = 0;
+            for (int i = 0; i < 10000; i++, n++)
+                m.put(new Coord<>(i, i), i);
+            for (int y = 0; y < 100; y++)
+                for (int x = 0; x < 100; x++, n++)
+                    m.put(new Coord<>(x, -1 - y), n);
+            assertEquals(n, m.size());
+            assertTrue(m.treeHeight() <= Math.log(n) / Math.log(1 / 0.7) + 2);
+            for (int i = 0; i < 10000; i++)
+                assertEquals((int)i, (int)m.get(new Coord<>(i, i)));
+            assertEquals(200, ((List<?>) m.subMap(new Coord<>(-1, -1), new Coord<>(99, -2), null)).size());
+        }
+
+        SpatialTreeMap<Integer, Integer, Integer> plain = new SpatialTreeMap<>();
+        for (int i = 0; i < 1000; i++)
+            plain.put(new Coord<>(i, i), i);
+        assertEquals(1000, plain.treeHeight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rebuildAlphaTest() {
+        new SpatialTreeMap<Integer, Integer, Integer>().setRebuildAlpha(0.5);
+    }
+
+    @Test
+    public void aggregateTest() {
+        for (SpatialTreeMap<Integer, Integer, Integer> m : backends()) {
+            Random r = new Random(2230);
+            Aggregator<Integer, Integer> count = Aggregator.count();
+            Aggregator<Integer, Double> sum = Aggregator.sum(v -> v);
+            Aggregator<Integer, Double> max = Aggregator.max(v -> v);
+            // registered before and after some entries arrive
+            m.addAggregator(count);
+            for (int i = 0; i < 3000; i++)
+                m.put(new Coord<>(r.nextInt(1000), r.nextInt(1000)), r.nextInt(100000));
+            m.addAggregator(sum);
+            m.addAggregator(max);
+            m.setRebuildAlpha(0.75);
+            java.util.Map<Coord<Integer, Integer>, Integer> expected = new java.util.HashMap<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.entrySet())
+                expected.put(e.getKey(), e.getValue());
+            for (int i = 0; i < 3000; i++) {
+                Coord<Integer, Integer> k = new Coord<>(r.nextInt(1000), r.nextInt(1000));
+                if (r.nextInt(4) == 0)
+                    assertEquals(expected.remove(k), m.remove(k));
+                else {
+                    int v = r.nextInt(100000);
+                    assertEquals(expected.put(k, v), m.put(k, v));
+                }
+            }
+            assertEquals(countIn(expected, 0, 300, 300, 0), m.removeRange(new Coord<>(0, 300), new Coord<>(300, 0)));
+            expected.keySet().removeIf(k -> k.getX() <= 300 && k.getY() <= 300);
+
+            for (int t = 0; t < 40; t++) {
+                int x = r.nextInt(1100) - 50, y = r.nextInt(1100) - 50;
+                Coord<Integer, Integer> nw = new Coord<>(x, y + 1 + r.nextInt(500));
+                Coord<Integer, Integer> se = new Coord<>(x + 1 + r.nextInt(500), y);
+                int n = 0;
+                double total = 0, largest = Double.NEGATIVE_INFINITY;
+                for (java.util.Map.Entry<Coord<Integer, Integer>, Integer> e : expected.entrySet()) {
+                    Coord<Integer, Integer> k = e.getKey();
+                    if (k.getX() >= nw.getX() && k.getX() <= se.getX() && k.getY() <= nw.getY() && k.getY() >= se.getY()) {
+                        n++;
+                        total += e.getValue();
+                        largest = Math.max(largest, e.getValue());
+                    }
+                }
+                assertEquals((int)n, (int)m.aggregate(count, nw, se));
+                assertEquals(total, m.aggregate(sum, nw, se), 1e-6);
+                assertEquals(largest, m.aggregate(max, nw, se), 0);
+            }
+            assertEquals((int)expected.size(), (int)m.aggregate(count, new Coord<>(-1, 1000), new Coord<>(1000, -1)));
+        }
+    }
+
+    @Test
+    public void nanAggregateTest() {
+        Random r = new Random(2230);
+        SpatialTreeMap<Integer, Integer, Double> m = new SpatialTreeMap<>();
+        Aggregator<Double, Double> min = Aggregator.min(v -> v);
+        Aggregator<Double, Double> max = Aggregator.max(v -> v);
+        m.addAggregator(min);
+        m.addAggregator(max);
+        double smallest = Double.POSITIVE_INFINITY, largest = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < 2000; i++) {
+            Coord<Integer, Integer> k = new Coord<>(r.nextInt(1000), r.nextInt(1000));
+            double v = (r.nextInt(3) == 0 ? Double.NaN : r.nextDouble());
+            m.put(k, v);
+        }
+        for (Entry<Coord<Integer, Integer>, Double> e : m.entrySet())
+            if (!e.getValue().isNaN()) {
+                smallest = Math.min(smallest, e.getValue());
+                largest = Math.max(largest, e.getValue());
+            }
+        Coord<Integer, Integer> nw = new Coord<>(-1, 1000), se = new Coord<>(1000, -1);
+        assertEquals(smallest, m.aggregate(min, nw, se), 0);
+        assertEquals(largest, m.aggregate(max, nw, se), 0);
+
+        // a box holding only NaN values summarizes like an empty one
+        SpatialTreeMap<Integer, Integer, Double> nans = new SpatialTreeMap<>();
+        nans.addAggregator(min);
+        nans.addAggregator(max);
+        nans.put(new Coord<>(0, 0), Double.NaN);
+        nans.put(new Coord<>(1, 1), Double.NaN);
+        assertEquals(Double.POSITIVE_INFINITY, nans.aggregate(min, new Coord<>(-1, 2), new Coord<>(2, -1)), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, nans.aggregate(max, new Coord<>(-1, 2), new Coord<>(2, -1)), 0);
+    }
+
+    private static int countIn(java.util.Map<Coord<Integer, Integer>, Integer> m, int minX, int maxY, int maxX, int minY) {
+        int n = 0;
+        for (Coord<Integer, Integer> k : m.keySet())
+            if (k.getX() >= minX && k.getX() <= maxX && k.getY() >= minY && k.getY() <= maxY)
+                n++;
+        return n;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unregisteredAggregatorTest() {
+        small().aggregate(Aggregator.<Integer>count(), new Coord<>(-1, 1), new Coord<>(1, -1));
+    }
+
+    @Test
+    public void countInRangeTest() {
+        SpatialTreeMap<Integer, Integer, Integer> tracked = medium();
+        tracked.trackSubtreeSizes();
+        for (SpatialTreeMap<Integer, Integer, Integer> m : Arrays.asList(medium(), tracked)) {
+            boolean tracking = m.tracksSubtreeSizes();
+            Coord<Integer, Integer> nw = new Coord<>(-13, 17);
+            Coord<Integer, Integer> se = new Coord<>(5, -4);
+            assertEquals(((List<?>) m.subMap(nw, se, null)).size(), m.countInRange(nw, se));
+            assertEquals(9, m.countInRange(nw, se));
+            // the sizes follow later changes
+            m.put(new Coord<>(0, 0), 100);
+            m.put(new Coord<>(-4, 4), 101);
+            m.remove(new Coord<>(4, 12));
+            assertEquals(9, m.countInRange(nw, se));
+            assertEquals(m.size(), m.countInRange(new Coord<>(-100, 100), new Coord<>(100, -100)));
+            assertEquals(0, m.countInRange(new Coord<>(5, 17), new Coord<>(-13, -4)));
+            // counting never starts tracking behind the caller's back
+            assertEquals(tracking, m.tracksSubtreeSizes());
+        }
+    }
+
+    @Test
+    public void topKTest() {
+        Random r = new Random(2230);
+        SpatialTreeMap<Integer, Integer, Integer> m = new SpatialTreeMap<>();
+        for (int i = 0; i < 20000; i++)
+            m.put(new Coord<>(r.nextInt(1000), r.nextInt(1000)), r.nextInt(1000000));
+        Comparator<Integer> byValue = Comparator.naturalOrder();
+        SpatialTreeMap.Ranking<Integer> ranking = m.addRanking(byValue);
+        assertSame(ranking, m.addRanking(byValue));
+        for (int t = 0; t < 30; t++) {
+            int x = r.nextInt(1100) - 50, y = r.nextInt(1100) - 50;
+            Coord<Integer, Integer> nw = new Coord<>(x, y + 1 + r.nextInt(500));
+            Coord<Integer, Integer> se = new Coord<>(x + 1 + r.nextInt(500), y);
+            List<Integer> expected = new ArrayList<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(nw, se, null))
+                expected.add(e.getValue());
+            Collections.sort(expected, Collections.reverseOrder());
+            List<Integer> found = new ArrayList<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.topK(nw, se, 10, ranking))
+                found.add(e.getValue());
+            assertEquals(expected.subList(0, Math.min(10, expected.size())), found);
+            // an unregistered order gives the same answer by looking at every entry in the box
+            List<Integer> unranked = new ArrayList<>();
+            for (Entry<Coord<Integer, Integer>, Integer> e : m.topK(nw, se, 10, (a, b) -> a.compareTo(b)))
+                unranked.add(e.getValue());
+            assertEquals(found, unranked);
+        }
+
+        // the summaries follow later changes
+        m.put(new Coord<>(500, 500), 2000000);
+        assertEquals((int)2000000, (int)m.topK(new Coord<>(0, 999), new Coord<>(999, 0), 1, ranking).get(0).getValue());
+        m.remove(new Coord<>(500, 500));
+        assertTrue(m.topK(new Coord<>(0, 999), new Coord<>(999, 0), 1, ranking).get(0).getValue() < 1000000);
+
+        // the work depends on k, not on the number of entries in the box
+        CountingVisitor<Entry<Coord<Integer, Integer>, Integer>> s = new CountingVisitor<>();
+        assertEquals(10, m.topK(new Coord<>(-1, 1000), new Coord<>(1000, -1), 10, ranking, s).size());
+        assertTrue(s.getCount() < m.size() / 20);
+        assertEquals(0, m.topK(new Coord<>(-1, 1000), new Coord<>(1000, -1), 0, ranking).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unregisteredRankingTest() {
+        SpatialTreeMap.Ranking<Integer> ranking = small().addRanking(Comparator.<Integer>naturalOrder());
+        small().topK(new Coord<>(-1, 100), new Coord<>(100, -1), 1, ranking);
+    }
+
+    @Test
+    public void attributeFilterTest() {
+        Random r = new Random(2230);
+        SpatialTreeMap<Integer, Integer, int[]> m = new SpatialTreeMap<>();
+        java.util.function.ToDoubleFunction<int[]> year = v -> v[0];
+        java.util.function.ToDoubleFunction<int[]> magnitude = v -> v[1];
+        m.indexAttribute(year);
+        for (int i = 0; i < 20000; i++) {
+            // years grow with x, so a filter on recent years rules out the west
+            int x = r.nextInt(1000);
+            m.put(new Coord<>(x, r.nextInt(1000)), new int[] { 1000 + x + r.nextInt(50), r.nextInt(10) });
+        }
+        m.indexAttribute(magnitude);
+        List<AttributeFilter<? super int[]>> filters = new ArrayList<>();
+        filters.add(AttributeFilter.atLeast(year, 1900));
+        filters.add(AttributeFilter.atLeast(magnitude, 9));
+        Coord<Integer, Integer> nw = new Coord<>(100, 900);
+        Coord<Integer, Integer> se = new Coord<>(950, 100);
+
+        Set<Coord<Integer, Integer>> expected = new HashSet<>();
+        CountingVisitor<Entry<Coord<Integer, Integer>, int[]>> plain = new CountingVisitor<>();
+        for (Entry<Coord<Integer, Integer>, int[]> e : m.subMap(nw, se, plain))
+            if (e.getValue()[0] >= 1900 && e.getValue()[1] >= 9)
+                expected.add(e.getKey());
+        CountingVisitor<Entry<Coord<Integer, Integer>, int[]>> filtered = new CountingVisitor<>();
+        Set<Coord<Integer, Integer>> found = new HashSet<>();
+        for (Entry<Coord<Integer, Integer>, int[]> e : m.subMap(nw, se, filters, filtered))
+            found.add(e.getKey());
+        assertEquals(expected, found);
+        assertTrue(filtered.getCount() < plain.getCount() / 2);
+
+        // filters on attributes that are not indexed still apply, without pruning
+        filters.set(1, AttributeFilter.atMost(v -> v[1], 0));
+        int n = 0;
+        for (Entry<Coord<Integer, Integer>, int[]> e : m.subMap(nw, se, null))
+            if (e.getValue()[0] >= 1900 && e.getValue()[1] <= 0)
+                n++;
+        assertEquals(n, m.subMap(nw, se, filters, null).size());
+    }
+
+    @Test
+    public void nanAttributeFilterTest() {
+        Random r = new Random(2230);
+        SpatialTreeMap<Integer, Integer, Double> m = new SpatialTreeMap<>();
+        java.util.function.ToDoubleFunction<Double> depth = v -> v;
+        m.indexAttribute(depth);
+        for (int i = 0; i < 20000; i++) {
+            // depths are unknown in a third of the entries and grow with x in the rest
+            int x = r.nextInt(1000);
+            m.put(new Coord<>(x, r.nextInt(1000)), r.nextInt(3) == 0 ? Double.NaN : x + r.nextInt(50));
+        }
+        List<AttributeFilter<? super Double>> filters = new ArrayList<>();
+        filters.add(AttributeFilter.atLeast(depth, 900));
+        Coord<Integer, Integer> nw = new Coord<>(-1, 1000);
+        Coord<Integer, Integer> se = new Coord<>(1000, -1);
+
+        Set<Coord<Integer, Integer>> expected = new HashSet<>();
+        CountingVisitor<Entry<Coord<Integer, Integer>, Double>> plain = new CountingVisitor<>();
+        for (Entry<Coord<Integer, Integer>, Double> e : m.subMap(nw, se, plain))
+            if (e.getValue() >= 900)
+                expected.add(e.getKey());
+        CountingVisitor<Entry<Coord<Integer, Integer>, Double>> filtered = new CountingVisitor<>();
+        Set<Coord<Integer, Integer>> found = new HashSet<>();
+        for (Entry<Coord<Integer, Integer>, Double> e : m.subMap(nw, se, filters, filtered))
+            found.add(e.getKey());
+        assertEquals(expected, found);
+        // NaN values do not stop subtrees from being pruned
+        assertTrue(filtered.getCount() < plain.getCount() / 2);
+
+        assertFalse(filters.get(0).overlaps(Double.NaN, 1000));
+        assertFalse(filters.get(0).overlaps(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void parallelSubMapTest() {
+        Random r = new Random(2230);
+        List<SpatialTreeMap<Integer, Integer, Integer>> maps = backends();
+        maps.add(new SpatialTreeMap<Integer, Integer, Integer>());  // stays below the cutoff
+        for (int i = 0; i < 40000; i++) {
+            Coord<Integer, Integer> k = new Coord<>(r.nextInt(10000), r.nextInt(10000));
+            maps.get(0).put(k, i);
+            maps.get(1).put(k, i);
+            if (i < 1000)
+                maps.get(2).put(k, i);
+        }
+        for (SpatialTreeMap<Integer, Integer, Integer> m : maps)
+            for (int i = 0; i < 50; i++) {
+                int x = r.nextInt(10000), y = r.nextInt(10000);
+                Coord<Integer, Integer> nw = new Coord<>(x, y + 1 + r.nextInt(5000));
+                Coord<Integer, Integer> se = new Coord<>(x + 1 + r.nextInt(5000), y);
+                List<Entry<Coord<Integer, Integer>, Integer>> expected = new ArrayList<>();
+                for (Entry<Coord<Integer, Integer>, Integer> e : m.subMap(nw, se, null))
+                    expected.add(e);
+                assertEquals(expected, m.parallelSubMap(nw, se));
+            }
+        SpatialTreeMap<Integer, Integer, Integer> m = maps.get(0);
+        assertEquals(m.size(), m.parallelSubMap(new Coord<>(-1, 10000), new Coord<>(10000, -1)).size());
+        assertTrue(m.parallelSubMap(new Coord<>(5, 5), new Coord<>(5, 4)).isEmpty());
+    }
+}
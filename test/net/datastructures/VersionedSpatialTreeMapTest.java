@@ -0,0 +1,109 @@
+package net.datastructures;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class VersionedSpatialTreeMapTest {
+
+    private static final int N = 20000;
+
+    private static Coord<Integer, Integer> key(int i) {
+        return new Coord<>(i % 100, i / 100);
+    }
+
+    @Test
+    public void epochTest() {
+        VersionedSpatialTreeMap<Integer, Integer, Integer> m = new VersionedSpatialTreeMap<>();
+        assertEquals(0, m.getEpoch());
+        assertNull(m.put(key(1), 1));
+        VersionedSpatialTreeMap.ReadView<Integer, Integer, Integer> first = m.openView();
+        assertEquals(Integer.valueOf(1), m.put(key(1), 2));
+        assertNull(m.remove(key(2)));       // no change, so no new epoch
+        assertEquals(2, m.getEpoch());
+        assertEquals(1, first.getEpoch());
+        assertEquals(Integer.valueOf(1), first.get(key(1)));
+        assertEquals(Integer.valueOf(2), m.get(key(1)));
+        assertEquals(Integer.valueOf(2), m.remove(key(1)));
+        assertTrue(m.isEmpty());
+        assertEquals(1, first.size());
+    }
+
+    /**
+     * A writer puts values 0, 1, 2, ... in order, each at its own key, while readers open
+     * views and scan them slowly. Each view must hold exactly the first epoch values,
+     * however many writes happen during the scan.
+     */
+    @Test
+    public void snapshotTest() throws InterruptedException {
+        final VersionedSpatialTreeMap<Integer, Integer, Integer> m = new VersionedSpatialTreeMap<>();
+        final Coord<Integer, Integer> nw = new Coord<>(-1, N);
+        final Coord<Integer, Integer> se = new Coord<>(100, -1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < N; i++)
+                m.put(key(i), i);
+        }));
+        for (int r = 0; r < 3; r++)
+            threads.add(new Thread(() -> {
+                try {
+                    long last = -1;
+                    while (last < N) {
+                        VersionedSpatialTreeMap.ReadView<Integer, Integer, Integer> view = m.openView();
+                        long epoch = view.getEpoch();
+                        assertTrue(epoch >= last);
+                        boolean[] seen = new boolean[N];
+                        int n = 0;
+                        for (Entry<Coord<Integer, Integer>, Integer> e : view.subMap(nw, se)) {
+                            assertFalse(seen[e.getValue()]);
+                            seen[e.getValue()] = true;
+                            n++;
+                            if (n % 1000 == 0)
+                                Thread.yield();     // let the writer move on mid-scan
+                        }
+                        assertEquals(epoch, n);
+                        for (int i = 0; i < n; i++)
+                            assertTrue(seen[i]);
+                        assertEquals(n, view.size());
+                        last = (epoch == N ? N + 1 : epoch);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertEquals(N, m.size());
+        assertEquals(N, m.getEpoch());
+    }
+
+    /** Concurrent writers all get their writes in, each in an epoch of its own */
+    @Test
+    public void concurrentWriteTest() throws InterruptedException {
+        final VersionedSpatialTreeMap<Integer, Integer, Integer> m = new VersionedSpatialTreeMap<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                for (int i = offset; i < N; i += 4)
+                    m.put(key(i), i);
+            }));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(N, m.size());
+        assertEquals(N, m.getEpoch());
+        assertEquals(N, m.countInRange(new Coord<>(-1, N), new Coord<>(100, -1)));
+    }
+}